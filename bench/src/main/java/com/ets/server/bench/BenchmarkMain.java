@@ -0,0 +1,20 @@
+package com.ets.server.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Lance les benchmarks avec les options JMH de la ligne de commande, en ajoutant toujours
+ * le profileur GC : chaque resultat de debit est accompagne du taux d'allocation.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		Options ligne = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(ligne).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
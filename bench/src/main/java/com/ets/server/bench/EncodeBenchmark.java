@@ -0,0 +1,73 @@
+package com.ets.server.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ets.server.AnswerEncoder;
+import com.ets.server.DNSMessage;
+import com.ets.server.RecordStore;
+import com.ets.server.UDPAnswerPacketCreator;
+
+/**
+ * Construction d'une reponse de deux adresses : par UDPAnswerPacketCreator.CreateAnswerPacket
+ * (un nouveau tableau par reponse) et par AnswerEncoder.encode, utilise par le serveur
+ * (tampon reutilise, modele de reponse de la table).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+	private final static String NOM = "www.exemple.bench.ca";
+
+	private final DNSMessage message = new DNSMessage();
+	private final byte[] out = new byte[512];
+	private final AnswerEncoder.Travail travail = new AnswerEncoder.Travail();
+	private byte[] question;
+	private int[] adresses;
+	private RecordStore store;
+	private RecordStore.RecordSet records;
+
+	@Setup
+	public void preparer() throws IOException {
+		question = Paquets.question(0x1234, NOM, DNSMessage.TYPE_A);
+		adresses = new int[] { 0x0A000001, 0x0A000002 };
+		File f = File.createTempFile("dns-bench-encode", ".txt");
+		f.deleteOnExit();
+		FileWriter w = new FileWriter(f);
+		try {
+			w.write(NOM + " 10.0.0.1\n" + NOM + " 10.0.0.2\n");
+		} finally {
+			w.close();
+		}
+		store = new RecordStore(f.getPath());
+		store.load();
+		records = store.find(NOM, DNSMessage.TYPE_A);
+	}
+
+	@Benchmark
+	public byte[] createAnswerPacket() {
+		return UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(question, adresses);
+	}
+
+	@Benchmark
+	public int encode() {
+		message.wrap(question, question.length);
+		return AnswerEncoder.encode(message, records, store, out, travail);
+	}
+}
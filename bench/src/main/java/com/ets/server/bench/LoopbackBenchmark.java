@@ -0,0 +1,141 @@
+package com.ets.server.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ets.server.DNSMessage;
+import com.ets.server.Log;
+import com.ets.server.UDPReceiver;
+
+/**
+ * Aller-retour complet sur la boucle locale : le serveur (UDPReceiver) est demarre dans
+ * la JVM du benchmark sur un port libre, et chaque operation envoie une requete en UDP et
+ * attend la reponse, tiree de la table. Le taux d'allocation mesure comprend celui du
+ * serveur et celui du client. Avec -t, plusieurs clients interrogent le serveur en parallele.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+	private final static String NOM = "www.exemple.bench.ca";
+	private final static int TIMEOUT_MS = 1000;
+
+	/** Le serveur, partage par tous les clients */
+	@State(Scope.Benchmark)
+	public static class Serveur {
+		@Param({ "socket", "nio" })
+		public String moteur;
+
+		InetSocketAddress adresse;
+
+		@Setup(Level.Trial)
+		public void demarrer() throws Exception {
+			Log.setNiveau(Log.WARN);
+			File f = File.createTempFile("dns-bench-loopback", ".txt");
+			f.deleteOnExit();
+			FileWriter w = new FileWriter(f);
+			try {
+				w.write(NOM + " 10.0.0.1\n" + NOM + " 10.0.0.2\n");
+			} finally {
+				w.close();
+			}
+			DatagramSocket libre = new DatagramSocket(0);
+			int port = libre.getLocalPort();
+			libre.close();
+
+			UDPReceiver serveur = new UDPReceiver("127.0.0.1", port);
+			serveur.setDNSFile(f.getPath());
+			serveur.setNio("nio".equals(moteur));
+			serveur.setTcp(false);
+			serveur.setRechargement(false);
+			serveur.setUpstreamSockets(0);
+			serveur.setDaemon(true);
+			serveur.start();
+			adresse = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+			attendre();
+		}
+
+		/**
+		 * Attend que le serveur reponde
+		 */
+		private void attendre() throws Exception {
+			Client c = new Client();
+			c.ouvrir();
+			try {
+				for (int i = 0; i < 50; i++) {
+					try {
+						c.interroger(this);
+						return;
+					} catch (SocketTimeoutException e) {
+						//pas encore demarre
+					}
+				}
+				throw new IllegalStateException("Le serveur ne repond pas sur " + adresse);
+			} finally {
+				c.fermer();
+			}
+		}
+	}
+
+	/** Un client, avec son socket */
+	@State(Scope.Thread)
+	public static class Client {
+		private DatagramSocket socket;
+		private final byte[] requete = Paquets.question(0, NOM, DNSMessage.TYPE_A);
+		private final byte[] reponse = new byte[512];
+		private DatagramPacket recue;
+		private int id = 0;
+
+		@Setup(Level.Trial)
+		public void ouvrir() throws IOException {
+			socket = new DatagramSocket();
+			socket.setSoTimeout(TIMEOUT_MS);
+			recue = new DatagramPacket(reponse, reponse.length);
+		}
+
+		@TearDown(Level.Trial)
+		public void fermer() {
+			socket.close();
+		}
+
+		int interroger(Serveur serveur) throws IOException {
+			id = (id + 1) & 0xFFFF;
+			requete[0] = (byte) (id >> 8);
+			requete[1] = (byte) id;
+			socket.send(new DatagramPacket(requete, requete.length, serveur.adresse));
+			do {
+				recue.setLength(reponse.length);
+				socket.receive(recue);
+			} while (((reponse[0] & 0xFF) << 8 | (reponse[1] & 0xFF)) != id); //reponse en retard a une requete precedente
+			return recue.getLength();
+		}
+	}
+
+	@Benchmark
+	public int allerRetour(Serveur serveur, Client client) throws IOException {
+		return client.interroger(serveur);
+	}
+}
@@ -0,0 +1,91 @@
+package com.ets.server.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import com.ets.server.AnswerEncoder;
+import com.ets.server.DNSMessage;
+
+/**
+ * Donnees communes aux benchmarks : paquets DNS et tables de test.
+ */
+final class Paquets {
+	static final String DOMAINE = "bench.ca";
+
+	private Paquets(){
+	}
+
+	/**
+	 * @return une requete (RD) pour un nom et un type, classe IN
+	 */
+	static byte[] question(int id, String nom, int qtype) {
+		byte[] q = new byte[DNSMessage.HEADER_SIZE + nom.length() + 2 + 4];
+		q[0] = (byte) (id >> 8);
+		q[1] = (byte) id;
+		q[2] = 0x01;
+		q[5] = 1;
+		int p = DNSMessage.HEADER_SIZE;
+		for (String etiquette : nom.split("\\.")) {
+			q[p++] = (byte) etiquette.length();
+			for (int i = 0; i < etiquette.length(); i++) q[p++] = (byte) etiquette.charAt(i);
+		}
+		q[p++] = 0;
+		q[p++] = (byte) (qtype >> 8);
+		q[p++] = (byte) qtype;
+		q[p++] = 0;
+		q[p++] = DNSMessage.CLASS_IN;
+		return q;
+	}
+
+	/**
+	 * @return la reponse a une requete A, avec une adresse par element (noms compresses)
+	 */
+	static byte[] reponse(String nom, int[] adresses) {
+		DNSMessage query = new DNSMessage();
+		byte[] q = question(0x1234, nom, DNSMessage.TYPE_A);
+		query.wrap(q, q.length);
+		byte[] out = new byte[512];
+		int length = AnswerEncoder.encodeAnswer(query, adresses, AnswerEncoder.TTL_TABLE, out);
+		byte[] r = new byte[length];
+		System.arraycopy(out, 0, r, 0, length);
+		return r;
+	}
+
+	/**
+	 * @return le nom de la ligne i d'une table generee
+	 */
+	static String nom(int i) {
+		return "host" + i + "." + DOMAINE;
+	}
+
+	/**
+	 * Ecrit une table au format du fichier DNS ("nom adresse"), une ligne par nom. Le fichier
+	 * est garde dans le dossier temporaire et reutilise d'une execution a l'autre.
+	 * @param lignes : nombre de lignes
+	 * @return le chemin du fichier
+	 */
+	static String table(int lignes) throws IOException {
+		File f = new File(System.getProperty("java.io.tmpdir"), "dns-bench-" + lignes + ".txt");
+		if (f.exists()) return f.getPath();
+		File tmp = new File(f.getPath() + ".tmp");
+		BufferedWriter w = new BufferedWriter(new FileWriter(tmp), 1 << 16);
+		try {
+			for (int i = 0; i < lignes; i++) {
+				w.write(nom(i));
+				w.write(" 10.");
+				w.write(Integer.toString((i >> 16) & 0xFF));
+				w.write('.');
+				w.write(Integer.toString((i >> 8) & 0xFF));
+				w.write('.');
+				w.write(Integer.toString(i & 0xFF));
+				w.newLine();
+			}
+		} finally {
+			w.close();
+		}
+		if (!tmp.renameTo(f)) throw new IOException("Impossible de creer " + f);
+		return f.getPath();
+	}
+}
@@ -0,0 +1,83 @@
+package com.ets.server.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ets.server.DNSMessage;
+import com.ets.server.RecordData;
+
+/**
+ * Lecture des paquets : nom de la question (l'ancien getDomainName) et adresses des
+ * enregistrements d'une reponse (l'ancien getIpAddressFromRDATA), sur place avec
+ * DNSMessage ou en copiant les RDATA comme le fait l'apprentissage des reponses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+	private final DNSMessage message = new DNSMessage();
+	private final StringBuilder nom = new StringBuilder(DNSMessage.MAX_NAME_LENGTH);
+	private byte[] question;
+	private byte[] reponse;
+
+	@Setup
+	public void preparer() {
+		question = Paquets.question(0x1234, "www.exemple.bench.ca", DNSMessage.TYPE_A);
+		reponse = Paquets.reponse("www.exemple.bench.ca", new int[] { 0x0A000001, 0x0A000002, 0x0A000003 });
+	}
+
+	/** Nom de la question dans le tampon de travail, sans allocation */
+	@Benchmark
+	public int nomQuestion() {
+		message.wrap(question, question.length);
+		nom.setLength(0);
+		message.appendName(message.getQnameOffset(), nom);
+		return nom.length() + message.getQtype();
+	}
+
+	/** Nom de la question en String, comme pour la recherche dans la table */
+	@Benchmark
+	public String nomQuestionString() {
+		message.wrap(question, question.length);
+		nom.setLength(0);
+		message.appendName(message.getQnameOffset(), nom);
+		return nom.toString();
+	}
+
+	/** Adresses des enregistrements A de la reponse, lues sur place */
+	@Benchmark
+	public int adressesReponse() {
+		message.wrap(reponse, reponse.length);
+		int somme = 0;
+		int rr = message.firstRecord();
+		for (int i = 0; i < message.getAncount() && rr >= 0; i++, rr = message.nextRecord(rr)) {
+			somme += message.rrAddress(rr);
+		}
+		return somme;
+	}
+
+	/** RDATA des enregistrements de la reponse, copiees */
+	@Benchmark
+	public int rdataReponse() {
+		message.wrap(reponse, reponse.length);
+		int taille = 0;
+		int rr = message.firstRecord();
+		for (int i = 0; i < message.getAncount() && rr >= 0; i++, rr = message.nextRecord(rr)) {
+			taille += RecordData.fromMessage(message, rr).length;
+		}
+		return taille;
+	}
+}
@@ -0,0 +1,58 @@
+package com.ets.server.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ets.server.QueryFinder;
+
+/**
+ * Recherche par lecture du fichier DNS (QueryFinder.StartResearch, utilisee par showtable
+ * et les anciens clients) : chaque recherche relit tout le fichier, son cout croit avec le
+ * nombre de lignes. Les fichiers de test sont generes une fois dans le dossier temporaire
+ * (celui de 10M lignes fait environ 280 Mo).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryFinderBenchmark {
+	@Param({ "100", "10000", "1000000", "10000000" })
+	public int lignes;
+
+	private QueryFinder finder;
+	private String present;
+
+	@Setup(Level.Trial)
+	public void preparer() throws IOException {
+		finder = new QueryFinder(Paquets.table(lignes));
+		present = Paquets.nom(lignes / 2);
+	}
+
+	/** Nom au milieu du fichier (le fichier est tout de meme lu en entier) */
+	@Benchmark
+	public List<String> present() {
+		return finder.StartResearch(present);
+	}
+
+	/** Nom absent */
+	@Benchmark
+	public List<String> absent() {
+		return finder.StartResearch("absent." + Paquets.DOMAINE);
+	}
+}
@@ -0,0 +1,60 @@
+package com.ets.server.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ets.server.DNSMessage;
+import com.ets.server.RecordStore;
+
+/**
+ * Recherche dans la table en memoire du serveur (RecordStore), pour les memes tailles de
+ * fichier que QueryFinderBenchmark. La table de 10M lignes demande un tas d'environ 4 Go :
+ * -p lignes=10000000 -jvmArgsAppend -Xmx6g.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordStoreBenchmark {
+	@Param({ "100", "10000", "1000000" })
+	public int lignes;
+
+	private RecordStore store;
+	private String[] noms;
+	private int suivant = 0;
+	private final String absent = "absent." + Paquets.DOMAINE;
+
+	@Setup(Level.Trial)
+	public void preparer() throws IOException {
+		store = new RecordStore(Paquets.table(lignes));
+		store.load();
+		//des noms repartis dans toute la table, pour ne pas toujours lire les memes noeuds
+		noms = new String[1024];
+		for (int i = 0; i < noms.length; i++) noms[i] = Paquets.nom((int) ((long) i * lignes / noms.length));
+	}
+
+	@Benchmark
+	public RecordStore.RecordSet present() {
+		return store.find(noms[suivant++ & (noms.length - 1)], DNSMessage.TYPE_A);
+	}
+
+	@Benchmark
+	public RecordStore.RecordSet absent() {
+		return store.find(absent, DNSMessage.TYPE_A);
+	}
+}
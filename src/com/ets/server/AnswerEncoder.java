@@ -0,0 +1,485 @@
+package com.ets.server;
+
+import java.util.Arrays;
+
+/**
+ * Construction des paquets de reponse directement dans un tampon fourni par l'appelant.
+ *
+ * Les enregistrements sont deja sous forme de RDATA (pre-encode au chargement de la table),
+ * il n'y a donc aucune conversion de texte a faire. Pour les noms de la table, la premiere
+ * reponse construite est gardee comme modele (template) : les reponses suivantes pour ce nom
+ * se font par une seule copie du modele, suivie de la correction de l'identifiant, du bit RD
+ * et des octets de la question (dont la casse peut varier d'une requete a l'autre). Le
+ * modele d'un joker ne sert qu'au nom pour lequel il a ete construit.
+ *
+ * Les noms ecrits dans une reponse sont compresses a l'aide d'une table des suffixes deja
+ * ecrits dans le message : un MX ou un NS du domaine demande, ou la cible d'un CNAME suivie
+ * de ses propres enregistrements, ne repetent donc pas les etiquettes communes.
+ *
+ * La table des suffixes et la chaine de CNAME sont des objets de travail (Travail) fournis
+ * par l'appelant, gardes par chaque thread : la construction d'une reponse n'alloue rien.
+ */
+public class AnswerEncoder {
+	public final static long TTL_TABLE = 0x00011a6c; //TTL des reponses tirees du fichier DNS
+	private final static int ANSWER_SIZE = 16; //pointeur(2) type(2) classe(2) ttl(4) rdlength(2) adresse(4)
+	private final static int MAX_CHAINE = 8; //ensembles d'une chaine de CNAME suivis dans la table
+	private final static int MAX_SUFFIXES = 64; //etiquettes retenues pour la compression
+	private final static int MAX_POINTEUR = 0x3FFF; //position maximale designee par un pointeur
+
+	private AnswerEncoder(){
+	}
+
+	/**
+	 * Objets de travail de la construction des reponses, reutilises d'une reponse a l'autre.
+	 * Une instance ne doit etre utilisee que par un thread a la fois.
+	 */
+	public static class Travail {
+		private final Suffixes suffixes = new Suffixes();
+		private final RecordStore.RecordSet[] chaine = new RecordStore.RecordSet[MAX_CHAINE];
+	}
+
+	/**
+	 * Ecrit une reponse de type A a la premiere question d'une requete. Si toutes les
+	 * adresses ne tiennent pas dans le tampon, celles qui tiennent sont ecrites et le
+	 * bit TC est mis.
+	 * @param query : la requete (ou la reponse d'un autre serveur) deja lue
+	 * @param adresses : adresses IPv4 a retourner
+	 * @param ttl : TTL des enregistrements
+	 * @param out : tampon de destination, ecrit a partir de la position 0
+	 * @return la taille de la reponse, -1 si la question ne tient pas dans le tampon
+	 */
+	public static int encodeAnswer(DNSMessage query, int[] adresses, long ttl, byte[] out){
+		int questionEnd = query.getQuestionEnd();
+		if (questionEnd > out.length) return -1;
+		int count = Math.min(Math.min(adresses.length, 0xFFFF), (out.length - questionEnd) / ANSWER_SIZE);
+
+		byte[] in = query.getBuffer();
+		//identifiant
+		out[0] = in[0];
+		out[1] = in[1];
+		//parametres : QR, TC si des adresses manquent, RD repris de la requete, RA
+		out[2] = (byte) (0x80 | (count < adresses.length ? 0x02 : 0) | (in[2] & 0x01));
+		out[3] = (byte) 0x80;
+		//une question, ancount reponses, ni autorite ni information additionnelle
+		out[4] = 0;
+		out[5] = 1;
+		out[6] = (byte) (count >> 8);
+		out[7] = (byte) count;
+		out[8] = 0;
+		out[9] = 0;
+		out[10] = 0;
+		out[11] = 0;
+
+		//la question est recopiee, son type et sa classe sont A/IN
+		System.arraycopy(in, DNSMessage.HEADER_SIZE, out, DNSMessage.HEADER_SIZE, questionEnd - 4 - DNSMessage.HEADER_SIZE);
+		out[questionEnd - 4] = 0;
+		out[questionEnd - 3] = DNSMessage.TYPE_A;
+		out[questionEnd - 2] = 0;
+		out[questionEnd - 1] = DNSMessage.CLASS_IN;
+
+		int j = questionEnd;
+		for (int i = 0; i < count; i++) {
+			int adresse = adresses[i];
+			out[j] = (byte) 0xC0; //pointeur vers le nom de la question (0x0C)
+			out[j + 1] = (byte) DNSMessage.HEADER_SIZE;
+			out[j + 2] = 0;
+			out[j + 3] = DNSMessage.TYPE_A;
+			out[j + 4] = 0;
+			out[j + 5] = DNSMessage.CLASS_IN;
+			out[j + 6] = (byte) (ttl >>> 24);
+			out[j + 7] = (byte) (ttl >>> 16);
+			out[j + 8] = (byte) (ttl >>> 8);
+			out[j + 9] = (byte) ttl;
+			out[j + 10] = 0;
+			out[j + 11] = 4;
+			out[j + 12] = (byte) (adresse >>> 24);
+			out[j + 13] = (byte) (adresse >>> 16);
+			out[j + 14] = (byte) (adresse >>> 8);
+			out[j + 15] = (byte) adresse;
+			j += ANSWER_SIZE;
+		}
+		return j;
+	}
+
+	/**
+	 * Ecrit une reponse a la premiere question d'une requete avec une suite d'ensembles
+	 * d'enregistrements : le premier a pour nom celui de la question, chacun des suivants a
+	 * pour nom la cible du CNAME qui le precede. La question est recopiee telle quelle (type
+	 * et classe compris). Les noms sont compresses (RFC 1035 4.1.4), y compris ceux du RDATA
+	 * des CNAME, NS, MX et SOA. Si tous les enregistrements ne tiennent pas dans le tampon, ceux
+	 * qui tiennent sont ecrits et le bit TC est mis.
+	 * @param query : la requete deja lue
+	 * @param chaine : ensembles d'enregistrements, dans l'ordre de la chaine de CNAME
+	 * @param n : nombre d'ensembles
+	 * @param ttl : TTL des enregistrements
+	 * @param out : tampon de destination, ecrit a partir de la position 0
+	 * @param suffixes : table des suffixes a utiliser (videe)
+	 * @return la taille de la reponse, -1 si la question ne tient pas dans le tampon
+	 */
+	private static int encodeRecords(DNSMessage query, RecordStore.RecordSet[] chaine, int n, long ttl, byte[] out,
+			Suffixes suffixes){
+		int questionEnd = query.getQuestionEnd();
+		if (questionEnd > out.length) return -1;
+		byte[] in = query.getBuffer();
+		System.arraycopy(in, DNSMessage.HEADER_SIZE, out, DNSMessage.HEADER_SIZE, questionEnd - DNSMessage.HEADER_SIZE);
+		suffixes.vider();
+		suffixes.ajouterNom(out, DNSMessage.HEADER_SIZE);
+
+		int j = questionEnd, count = 0;
+		boolean tronque = false;
+		for (int i = 0; i < n && !tronque; i++) {
+			RecordStore.RecordSet records = chaine[i];
+			int type = records.getType();
+			for (byte[] rdata : records.getRdatas()) {
+				int fin = count < 0xFFFF ? ecrireRecord(out, j, i == 0 ? null : chaine[i - 1].getRdatas()[0],
+						type, rdata, ttl, suffixes) : -1;
+				if (fin < 0) {
+					tronque = true;
+					break;
+				}
+				j = fin;
+				count++;
+			}
+		}
+
+		out[0] = in[0];
+		out[1] = in[1];
+		out[2] = (byte) (0x80 | (tronque ? 0x02 : 0) | (in[2] & 0x01));
+		out[3] = (byte) 0x80;
+		out[4] = 0;
+		out[5] = 1;
+		out[6] = (byte) (count >> 8);
+		out[7] = (byte) count;
+		out[8] = 0;
+		out[9] = 0;
+		out[10] = 0;
+		out[11] = 0;
+		return j;
+	}
+
+	/**
+	 * Ecrit un enregistrement
+	 * @param proprietaire : nom de l'enregistrement (non compresse), null pour le nom de la question
+	 * @return la position qui suit l'enregistrement, -1 s'il ne tient pas dans le tampon
+	 */
+	private static int ecrireRecord(byte[] out, int j, byte[] proprietaire, int type, byte[] rdata, long ttl,
+			Suffixes suffixes){
+		if (proprietaire == null) {
+			if (j + 2 > out.length) return -1;
+			out[j] = (byte) 0xC0; //pointeur vers le nom de la question (0x0C)
+			out[j + 1] = (byte) DNSMessage.HEADER_SIZE;
+			j += 2;
+		} else {
+			j = suffixes.ecrire(out, j, proprietaire, 0);
+			if (j < 0) return -1;
+		}
+		if (j + 10 > out.length) return -1;
+		out[j] = (byte) (type >> 8);
+		out[j + 1] = (byte) type;
+		out[j + 2] = 0;
+		out[j + 3] = DNSMessage.CLASS_IN;
+		out[j + 4] = (byte) (ttl >>> 24);
+		out[j + 5] = (byte) (ttl >>> 16);
+		out[j + 6] = (byte) (ttl >>> 8);
+		out[j + 7] = (byte) ttl;
+		int debut = j + 10;
+		int fin;
+		switch (type) {
+		case DNSMessage.TYPE_CNAME:
+		case DNSMessage.TYPE_NS:
+			fin = suffixes.ecrire(out, debut, rdata, 0);
+			break;
+		case DNSMessage.TYPE_MX:
+			if (debut + 2 > out.length) return -1;
+			out[debut] = rdata[0]; //preference
+			out[debut + 1] = rdata[1];
+			fin = suffixes.ecrire(out, debut + 2, rdata, 2);
+			break;
+		case DNSMessage.TYPE_SOA: {
+			int rname = RecordData.finNom(rdata, 0);
+			int nombres = RecordData.finNom(rdata, rname);
+			fin = suffixes.ecrire(out, debut, rdata, 0);
+			if (fin >= 0) fin = suffixes.ecrire(out, fin, rdata, rname);
+			if (fin < 0 || fin + rdata.length - nombres > out.length) return -1;
+			System.arraycopy(rdata, nombres, out, fin, rdata.length - nombres);
+			fin += rdata.length - nombres;
+			break;
+		}
+		default:
+			if (debut + rdata.length > out.length) return -1;
+			System.arraycopy(rdata, 0, out, debut, rdata.length);
+			fin = debut + rdata.length;
+		}
+		if (fin < 0) return -1;
+		out[j + 8] = (byte) ((fin - debut) >> 8);
+		out[j + 9] = (byte) (fin - debut);
+		return fin;
+	}
+
+	/**
+	 * Ecrit la reponse negative d'un serveur qui fait autorite (RFC 2308) : NXDOMAIN si le
+	 * nom n'existe pas, NODATA (NOERROR sans reponse) s'il n'a pas d'enregistrement du type
+	 * demande. Le SOA de la zone est mis dans la section autorite, avec pour TTL son champ
+	 * minimum.
+	 * @param query : la requete deja lue
+	 * @param rcode : RCODE_NXDOMAIN ou RCODE_NOERROR
+	 * @param zone : nom de la zone au format "wire"
+	 * @param soa : SOA de la zone, null si la table n'en a pas
+	 * @param out : tampon de destination, ecrit a partir de la position 0
+	 * @param travail : objets de travail du thread
+	 * @return la taille de la reponse, -1 si la question ne tient pas dans le tampon
+	 */
+	public static int encodeNegative(DNSMessage query, int rcode, byte[] zone, RecordStore.RecordSet soa, byte[] out,
+			Travail travail){
+		int questionEnd = query.getQuestionEnd();
+		if (questionEnd > out.length) return -1;
+		byte[] in = query.getBuffer();
+		System.arraycopy(in, DNSMessage.HEADER_SIZE, out, DNSMessage.HEADER_SIZE, questionEnd - DNSMessage.HEADER_SIZE);
+		int j = questionEnd, ns = 0;
+		boolean tronque = false;
+		if (soa != null && soa.getType() == DNSMessage.TYPE_SOA) {
+			Suffixes suffixes = travail.suffixes;
+			suffixes.vider();
+			suffixes.ajouterNom(out, DNSMessage.HEADER_SIZE);
+			byte[] rdata = soa.getRdatas()[0];
+			int fin = ecrireRecord(out, j, zone, DNSMessage.TYPE_SOA, rdata,
+					Math.min(TTL_TABLE, RecordData.soaMinimum(rdata)), suffixes);
+			if (fin > 0) {
+				j = fin;
+				ns = 1;
+			} else {
+				tronque = true;
+			}
+		}
+		out[0] = in[0];
+		out[1] = in[1];
+		out[2] = (byte) (0x80 | 0x04 | (tronque ? 0x02 : 0) | (in[2] & 0x01)); //QR, AA
+		out[3] = (byte) (0x80 | rcode);
+		out[4] = 0;
+		out[5] = 1;
+		out[6] = 0;
+		out[7] = 0;
+		out[8] = 0;
+		out[9] = (byte) ns;
+		out[10] = 0;
+		out[11] = 0;
+		return j;
+	}
+
+	/**
+	 * Met le bit AA d'une reponse construite par ce serveur
+	 * @param out : la reponse
+	 * @param length : sa taille, -1 si elle n'a pu etre construite
+	 */
+	public static void marquerAutorite(byte[] out, int length){
+		if (length > 0) out[2] |= 0x04;
+	}
+
+	/**
+	 * Ecrit la reponse pour un nom de la table. Si le nom est un alias et que la question
+	 * porte sur un autre type, la chaine de CNAME est suivie dans la table et les
+	 * enregistrements de son dernier nom sont ajoutes a la reponse (RFC 1034 3.6.2).
+	 * @param query : la requete deja lue
+	 * @param records : les enregistrements du nom demande (RecordStore.find())
+	 * @param store : la table, pour suivre les CNAME
+	 * @param out : tampon de destination, ecrit a partir de la position 0
+	 * @param travail : objets de travail du thread
+	 * @return la taille de la reponse, -1 si la question ne tient pas dans le tampon
+	 */
+	public static int encode(DNSMessage query, RecordStore.RecordSet records, RecordStore store, byte[] out,
+			Travail travail){
+		int qtype = query.getQtype();
+		if (records.getType() != DNSMessage.TYPE_CNAME || qtype == DNSMessage.TYPE_CNAME) {
+			return encodeFromTemplate(query, records, out, travail);
+		}
+		RecordStore.RecordSet[] chaine = travail.chaine;
+		int n = 0;
+		for (RecordStore.RecordSet s = records; s != null && n < MAX_CHAINE && !contient(chaine, n, s); ) {
+			chaine[n++] = s;
+			if (s.getType() != DNSMessage.TYPE_CNAME) break;
+			s = store.find(RecordData.wireToName(s.getRdatas()[0], 0), qtype);
+		}
+		//pas de modele : les enregistrements de la cible peuvent changer sans que l'alias le sache
+		int length = encodeRecords(query, chaine, n, TTL_TABLE, out, travail.suffixes);
+		Arrays.fill(chaine, 0, n, null); //ne retient pas une table remplacee
+		return length;
+	}
+
+	private static boolean contient(RecordStore.RecordSet[] chaine, int n, RecordStore.RecordSet s){
+		for (int i = 0; i < n; i++) {
+			if (chaine[i] == s) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Ecrit la reponse pour un nom de la table en utilisant son modele. Le modele est
+	 * construit lors du premier appel pour ce nom et ce type.
+	 * @param query : la requete deja lue
+	 * @param records : les enregistrements du nom demande
+	 * @param out : tampon de destination, ecrit a partir de la position 0
+	 * @param travail : objets de travail du thread
+	 * @return la taille de la reponse, -1 si la question ne tient pas dans le tampon
+	 */
+	public static int encodeFromTemplate(DNSMessage query, RecordStore.RecordSet records, byte[] out, Travail travail){
+		byte[] template = records.getTemplate();
+		int questionEnd = query.getQuestionEnd();
+		if (template == null) {
+			int length = encodeSeul(query, records, out, travail);
+			if (length > 0 && (out[2] & 0x02) == 0 && finNom(out, DNSMessage.HEADER_SIZE) + 4 == questionEnd) {
+				template = new byte[length];
+				System.arraycopy(out, 0, template, 0, length);
+				records.setTemplate(template);
+			}
+			return length;
+		}
+		//le modele ne sert que pour le nom avec lequel il a ete construit, a la casse pres : les
+		//noms du RDATA peuvent etre compresses vers la question, un autre nom couvert par le meme
+		//joker changerait donc ces noms. Pour un autre nom ou une requete inhabituelle (plusieurs
+		//questions, nom compresse...), la reponse complete est construite.
+		byte[] in = query.getBuffer();
+		if (query.getQdcount() != 1 || !memeNom(template, in, questionEnd - 4)
+				|| template.length > out.length) {
+			return encodeSeul(query, records, out, travail);
+		}
+
+		System.arraycopy(template, 0, out, 0, template.length);
+		out[0] = in[0];
+		out[1] = in[1];
+		out[2] = (byte) (0x80 | (in[2] & 0x01));
+		//nom, type et classe : un CNAME repond aussi aux questions d'un autre type
+		System.arraycopy(in, DNSMessage.HEADER_SIZE, out, DNSMessage.HEADER_SIZE, questionEnd - DNSMessage.HEADER_SIZE);
+		return template.length;
+	}
+
+	/**
+	 * Ecrit la reponse complete pour un seul ensemble d'enregistrements
+	 */
+	private static int encodeSeul(DNSMessage query, RecordStore.RecordSet records, byte[] out, Travail travail){
+		travail.chaine[0] = records;
+		int length = encodeRecords(query, travail.chaine, 1, TTL_TABLE, out, travail.suffixes);
+		travail.chaine[0] = null;
+		return length;
+	}
+
+	/**
+	 * @return true si les noms non compresses de la question du modele et de la requete sont
+	 * egaux, sans tenir compte de la casse, et finissent a la position fin
+	 */
+	private static boolean memeNom(byte[] template, byte[] in, int fin){
+		if (fin > template.length) return false;
+		int p = DNSMessage.HEADER_SIZE;
+		while (p < fin) {
+			int len = in[p] & 0xFF;
+			if (len != (template[p] & 0xFF) || (len & 0xC0) != 0) return false;
+			if (len == 0) return p + 1 == fin;
+			if (p + len >= fin) return false;
+			for (int i = p + 1; i <= p + len; i++) {
+				if (Suffixes.minuscule(in[i]) != Suffixes.minuscule(template[i])) return false;
+			}
+			p += len + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * @return la position qui suit un nom non compresse, -1 si le nom contient un pointeur
+	 */
+	private static int finNom(byte[] b, int offset){
+		while (offset < b.length) {
+			int len = b[offset] & 0xFF;
+			if (len == 0) return offset + 1;
+			if ((len & 0xC0) != 0) return -1;
+			offset += len + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Table des suffixes deja ecrits dans un message : position de chaque etiquette ecrite
+	 * en clair. Un nom a ecrire est compare, du plus long suffixe au plus court, aux noms
+	 * qui commencent a ces positions; le premier suffixe trouve est remplace par un pointeur.
+	 * La table est petite (une reponse contient peu de noms differents), la recherche est
+	 * donc une simple boucle.
+	 */
+	private static class Suffixes {
+		private final int[] positions = new int[MAX_SUFFIXES];
+		private int n = 0;
+
+		/**
+		 * Oublie les suffixes du message precedent
+		 */
+		void vider(){
+			n = 0;
+		}
+
+		/**
+		 * Enregistre les etiquettes d'un nom deja present dans le message
+		 * @param offset : position du nom
+		 */
+		void ajouterNom(byte[] out, int offset){
+			while (offset < out.length && n < positions.length) {
+				int len = out[offset] & 0xFF;
+				if (len == 0 || (len & 0xC0) != 0) return;
+				positions[n++] = offset;
+				offset += len + 1;
+			}
+		}
+
+		/**
+		 * Ecrit un nom en le compressant si possible
+		 * @param nom : tampon contenant le nom non compresse
+		 * @param debut : position du nom dans ce tampon
+		 * @return la position qui suit le nom ecrit, -1 s'il ne tient pas dans le tampon
+		 */
+		int ecrire(byte[] out, int p, byte[] nom, int debut){
+			for (int k = debut; k < nom.length; k += (nom[k] & 0xFF) + 1) {
+				int len = nom[k] & 0xFF;
+				if (len == 0) break;
+				for (int i = 0; i < n; i++) {
+					if (egaux(out, positions[i], nom, k)) {
+						if (p + 2 > out.length) return -1;
+						out[p] = (byte) (0xC0 | (positions[i] >> 8));
+						out[p + 1] = (byte) positions[i];
+						return p + 2;
+					}
+				}
+				if (p + len + 1 > out.length) return -1;
+				if (p <= MAX_POINTEUR && n < positions.length) positions[n++] = p;
+				System.arraycopy(nom, k, out, p, len + 1);
+				p += len + 1;
+			}
+			if (p + 1 > out.length) return -1;
+			out[p] = 0;
+			return p + 1;
+		}
+
+		/**
+		 * Compare, sans tenir compte de la casse, le nom ecrit a une position du message
+		 * (pointeurs suivis) au suffixe d'un nom non compresse
+		 */
+		private static boolean egaux(byte[] out, int e, byte[] nom, int k){
+			for (int sauts = 0; sauts < MAX_SUFFIXES && e < out.length && k < nom.length; ) {
+				int len = out[e] & 0xFF;
+				if ((len & 0xC0) == 0xC0) {
+					if (e + 1 >= out.length) return false;
+					e = ((len & 0x3F) << 8) | (out[e + 1] & 0xFF);
+					sauts++;
+					continue;
+				}
+				if (len != (nom[k] & 0xFF) || e + len >= out.length || k + len >= nom.length) return false;
+				if (len == 0) return true;
+				for (int i = 1; i <= len; i++) {
+					if (minuscule(out[e + i]) != minuscule(nom[k + i])) return false;
+				}
+				e += len + 1;
+				k += len + 1;
+			}
+			return false;
+		}
+
+		private static int minuscule(byte b){
+			return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+		}
+	}
+}
@@ -1,28 +1,65 @@
 package com.ets.server;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /***
  * Cette classe est utilise pour enregistrer une reponse
  * dans le fichier texte en provenance d'un Server DNS autre.
+ *
+ * L'ecriture se fait dans un thread a part : StartRecord ne fait que deposer la ligne
+ * dans une file, et le thread ecrit les lignes par lots dans un fichier ouvert une seule
+ * fois en ajout. Le lot est envoye sur le disque des qu'il contient BATCH_SIZE lignes
+ * ou que la plus ancienne attend depuis FLUSH_MS millisecondes. Le traitement des
+ * requetes n'attend donc jamais le disque.
+ *
+ * Le thread retient l'etat du fichier (taille, date) apres chacune de ses ecritures, ce qui
+ * permet au ZoneWatcher de distinguer ses ajouts d'une modification faite par quelqu'un d'autre.
+ * Si le fichier a ete remplace (renommage, sauvegarde atomique d'un editeur) ou raccourci,
+ * il est rouvert avant l'ecriture suivante : les lignes ne sont jamais ajoutees a l'ancien
+ * fichier, qui n'est plus sous ce nom.
  * @author Max (aj98150)
  * Nettoyer pour eviter les erreurs de manipulation
  * @author lighta, Simon
  */
-public class AnswerRecorder {
+public class AnswerRecorder extends Thread {
+	private final static int QUEUE_SIZE = 4096; //lignes en attente d'ecriture
+	private final static int BATCH_SIZE = 256; //lignes par ecriture sur le disque
+	private final static long FLUSH_MS = 500; //attente max d'une ligne avant l'ecriture
+	private final static long REESSAI_MS = 1000; //attente apres une premiere erreur d'ecriture, doublee ensuite
+	private final static long MAX_REESSAI_MS = 30000;
+
 	private String filename = null; //path du fichier a utiliser
+	private final BlockingQueue<String> lignes = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	private volatile boolean stop = false;
+	private long lignesAbandonnees = 0;
+	private long tailleConnue = -1, dateConnue = -1; //etat du fichier apres la derniere ecriture
+	private boolean modifieAilleurs = false; //le fichier a change entre deux ecritures du thread
+	private Object cleFichier = null; //identite (inode) du fichier ouvert, null si inconnue
+	private volatile boolean rouvrir = false; //le fichier doit etre rouvert avant la prochaine ecriture
 
 	/**
 	 * Construteur
 	 * @param filename : Nom du fichier pour sauvegarder les adressesIP et hostname
-	 * 
+	 *
 	 */
 	public AnswerRecorder(String filename){
+		super("dns-recorder");
 		this.filename = filename;
+		setDaemon(true);
 		//TODO devrait check si on a le droit d'ecriture / lecture dans ce filename
 	}
-		
+
 	/**
 	 * @return file name
 	 */
@@ -31,21 +68,196 @@ public class AnswerRecorder {
 	}
 
 	/**
+	 * Demande l'enregistrement d'une adresse. La ligne est ecrite plus tard par le thread;
+	 * si la file est pleine, elle est abandonnee.
 	 * @param hostname : NS (ex google.com)
-	 * @param adresseIP : Ip resolvant le NS
+	 * @param adresseIP : Ip resolvant le NS, ou "TYPE donnees" pour un autre type (RecordData.formatValeur)
 	 */
 	public void StartRecord(String hostname,String adresseIP){
-		if(adresseIP.length() < 7) { //@TODO add proper regex
-			System.out.println("Invalid adresseIP to write ("+adresseIP+")");
-			return; 	
+		if(adresseIP.trim().isEmpty()) {
+			Log.warn("Invalid adresseIP to write ("+adresseIP+")");
+			return;
+		}
+		if(!lignes.offer(hostname + " " + adresseIP)) {
+			synchronized (this) {
+				lignesAbandonnees++;
+			}
+			Log.warn("File d'ecriture pleine, "+hostname+" "+adresseIP+" ne sera pas enregistre");
 		}
+	}
+
+	/**
+	 * @return le nombre de lignes abandonnees parce que la file etait pleine
+	 */
+	public synchronized long getLignesAbandonnees() {
+		return lignesAbandonnees;
+	}
+
+	/**
+	 * Indique si le fichier a ete modifie par un autre que ce thread depuis le dernier appel.
+	 * @return false si le fichier n'a recu que les lignes ecrites par ce thread
+	 */
+	public synchronized boolean aEteModifieAilleurs() {
+		File f = new File(filename);
+		boolean modifie = modifieAilleurs || f.length() != tailleConnue || f.lastModified() != dateConnue;
+		modifieAilleurs = false;
+		tailleConnue = f.length();
+		dateConnue = f.lastModified();
+		return modifie;
+	}
+
+	/**
+	 * Demande de rouvrir le fichier avant la prochaine ecriture (appele par le ZoneWatcher
+	 * quand il recharge un fichier modifie par quelqu'un d'autre)
+	 */
+	public void rouvrir() {
+		rouvrir = true;
+	}
+
+	/**
+	 * @return l'identite du fichier (inode sous Unix), null s'il n'existe pas ou si le
+	 * systeme ne la donne pas
+	 */
+	private static Object cle(File f) {
 		try {
-			FileWriter writerFichierSource = new FileWriter(filename,true);		
-			writerFichierSource.write(hostname + " " + adresseIP);
-			writerFichierSource.write("\r\n");
-			writerFichierSource.close();
+			return Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
 		} catch (IOException e) {
-			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Ouvre le fichier en ajout
+	 */
+	private Writer ouvrir(File f) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(f, true));
+		cleFichier = cle(f);
+		return writer;
+	}
+
+	/**
+	 * Ecrit les lignes en attente et les envoie sur le disque en retenant l'etat du fichier.
+	 * Le fichier est d'abord ouvert s'il ne l'est pas (writer null), ou rouvert s'il a ete
+	 * remplace, supprime ou raccourci.
+	 * @return le writer a utiliser pour les ecritures suivantes
+	 */
+	private synchronized Writer ecrire(Writer writer, StringBuilder attente) throws IOException {
+		File f = new File(filename);
+		long taille = f.length();
+		if (taille != tailleConnue || f.lastModified() != dateConnue) modifieAilleurs = true;
+		Object cle = cle(f);
+		if (writer == null) {
+			rouvrir = false;
+			writer = ouvrir(f);
+		} else if (rouvrir || !f.exists() || (cle != null && !cle.equals(cleFichier)) || taille < tailleConnue) {
+			rouvrir = false;
+			writer.close();
+			writer = ouvrir(f);
+			if (Log.isDebug()) Log.debug(filename + " remplace ou raccourci, fichier rouvert");
+		}
+		writer.append(attente);
+		writer.flush();
+		tailleConnue = f.length();
+		dateConnue = f.lastModified();
+		return writer;
+	}
+
+	/**
+	 * Ecrit les lots de lignes jusqu'a l'arret. Apres une erreur d'ecriture, le fichier est
+	 * rouvert et les lignes sont ecrites de nouveau, apres une attente qui double a chaque
+	 * nouvel echec; au-dela de QUEUE_SIZE lignes en souffrance, elles sont abandonnees.
+	 */
+	public void run() {
+		Writer writer = null; //ouvert a la premiere ecriture
+		List<String> lot = new ArrayList<String>(BATCH_SIZE);
+		StringBuilder attente = new StringBuilder(); //lignes pas encore ecrites dans le fichier
+		int nonEcrites = 0;
+		long premiere = 0; //moment ou la plus ancienne de ces lignes a ete recue
+		long reessai = 0; //attente avant le prochain essai apres une erreur, 0 sans erreur
+		synchronized (this) {
+			tailleConnue = new File(filename).length();
+			dateConnue = new File(filename).lastModified();
+		}
+		try {
+			while (!stop || !lignes.isEmpty()) {
+				String ligne = lignes.poll(FLUSH_MS, TimeUnit.MILLISECONDS);
+				if (ligne != null) {
+					lot.add(ligne);
+					lignes.drainTo(lot, BATCH_SIZE - lot.size());
+					if (nonEcrites == 0) premiere = System.currentTimeMillis();
+					for (String l : lot) {
+						attente.append(l).append("\r\n");
+					}
+					nonEcrites += lot.size();
+					lot.clear();
+				}
+				if (nonEcrites > 0 && (nonEcrites >= BATCH_SIZE || stop
+						|| System.currentTimeMillis() - premiere >= FLUSH_MS)) {
+					try {
+						writer = ecrire(writer, attente);
+						attente.setLength(0);
+						nonEcrites = 0;
+						if (reessai > 0) Log.info("Ecriture dans " + filename + " reprise");
+						reessai = 0;
+					} catch (IOException e) {
+						reessai = reessai == 0 ? REESSAI_MS : Math.min(2 * reessai, MAX_REESSAI_MS);
+						Log.error("Ecriture dans " + filename + " impossible, nouvel essai dans " + reessai + " ms", e);
+						writer = fermerFichier(writer);
+						if (nonEcrites > QUEUE_SIZE) {
+							synchronized (this) {
+								lignesAbandonnees += nonEcrites;
+							}
+							Log.warn(nonEcrites + " lignes ne seront pas enregistrees dans " + filename);
+							attente.setLength(0);
+							nonEcrites = 0;
+						}
+						if (stop) break; //dernier essai ci-dessous
+						Thread.sleep(reessai);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			//arret force, les lignes en attente sont ecrites ci-dessous
+		} finally {
+			//lignes encore dans la file comprises
+			lignes.drainTo(lot);
+			for (String l : lot) {
+				attente.append(l).append("\r\n");
+			}
+			try {
+				if (attente.length() > 0) writer = ecrire(writer, attente);
+			} catch (IOException e) {
+				Log.error("Lignes non enregistrees dans " + filename, e);
+			}
+			fermerFichier(writer);
+		}
+	}
+
+	/**
+	 * Ferme le fichier sans propager d'erreur
+	 * @return null, le writer a utiliser ensuite
+	 */
+	private Writer fermerFichier(Writer writer) {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				Log.error("Fermeture de " + filename + " impossible", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Ecrit les lignes en attente et arrete le thread
+	 * @param delaiMillis : attente max de la fin des ecritures
+	 */
+	public void fermer(long delaiMillis) {
+		stop = true;
+		try {
+			join(delaiMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 }
@@ -0,0 +1,54 @@
+package com.ets.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reserve de ByteBuffer directs de taille fixe, reutilises d'un paquet a l'autre
+ * pour ne pas allouer (ni liberer) de memoire a chaque reception ou envoi.
+ * Si la reserve est vide, un nouveau tampon est cree; il sera garde au retour
+ * tant que la reserve n'est pas pleine.
+ */
+public class BufferPool {
+	private final ByteBuffer[] libres;
+	private final int bufferSize;
+	private int count = 0;
+
+	/**
+	 * Constructeur
+	 * @param capacity : nombre max de tampons gardes en reserve
+	 * @param bufferSize : taille de chaque tampon
+	 */
+	public BufferPool(int capacity, int bufferSize){
+		this.libres = new ByteBuffer[capacity];
+		this.bufferSize = bufferSize;
+		for (int i = 0; i < capacity; i++) {
+			libres[count++] = ByteBuffer.allocateDirect(bufferSize);
+		}
+	}
+
+	/**
+	 * @return un tampon vide (position 0, limite = capacite)
+	 */
+	public synchronized ByteBuffer acquire(){
+		if (count == 0) return ByteBuffer.allocateDirect(bufferSize);
+		ByteBuffer buffer = libres[--count];
+		libres[count] = null;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Rend un tampon a la reserve
+	 * @param buffer : tampon obtenu par acquire
+	 */
+	public synchronized void release(ByteBuffer buffer){
+		if (count < libres.length) libres[count++] = buffer;
+	}
+
+	/**
+	 * @return la taille des tampons
+	 */
+	public int getBufferSize(){
+		return bufferSize;
+	}
+}
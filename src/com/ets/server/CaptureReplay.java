@@ -0,0 +1,180 @@
+package com.ets.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lecture d'une capture (PacketCapture) : affichage des paquets et envoi des requetes
+ * capturees a un serveur.
+ *
+ * Le rejeu envoie les requetes des clients dans leur ordre de capture, en UDP, en
+ * respectant leur espacement d'origine divise par un facteur de vitesse (0 pour les
+ * envoyer aussi vite que possible). Les reponses sont associees aux requetes par leur
+ * identifiant; a la fin, le nombre de requetes sans reponse, la repartition des RCODE et
+ * les durees de reponse sont affiches. Une capture sert ainsi a reproduire un incident ou
+ * comme source de charge realiste.
+ */
+public class CaptureReplay {
+	private final static int ATTENTE_FIN_MS = 2000; //attente des dernieres reponses apres le dernier envoi
+	private final static int TIMEOUT_RECEPTION_MS = 200;
+
+	private CaptureReplay(){
+	}
+
+	/**
+	 * Affiche chaque paquet d'une capture : heure, sens, client, identifiant, question et RCODE
+	 * @param fichier : fichier de capture
+	 * @param out : destination
+	 * @return le nombre de paquets
+	 * @throws IOException si la capture ne peut etre lue
+	 */
+	public static long lister(String fichier, final PrintStream out) throws IOException {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final DNSMessage message = new DNSMessage();
+		final StringBuilder nom = new StringBuilder(DNSMessage.MAX_NAME_LENGTH);
+		return PacketCapture.parcourir(fichier, new PacketCapture.Visiteur() {
+			public void paquet(long heure, int sens, boolean tcp, InetSocketAddress client, byte[] data, int length) {
+				StringBuilder ligne = new StringBuilder(128);
+				ligne.append(format.format(new Date(heure / 1000)))
+						.append(sens == PacketCapture.SENS_REQUETE ? " Q " : " R ")
+						.append(tcp ? "tcp " : "udp ").append(client);
+				nom.setLength(0);
+				if (message.wrap(data, length) && message.hasQuestion() && message.appendName(message.getQnameOffset(), nom)) {
+					ligne.append(" id=").append(message.getId()).append(" name=").append(nom)
+							.append(" type=").append(RecordData.typeName(message.getQtype()));
+					if (message.isResponse()) ligne.append(" rcode=").append(message.getRcode())
+							.append(" ancount=").append(message.getAncount());
+				} else {
+					ligne.append(" (message illisible, ").append(length).append(" octets)");
+				}
+				out.println(ligne);
+			}
+		});
+	}
+
+	/** Une requete capturee */
+	private static class Requete {
+		final long heure;
+		final byte[] data;
+
+		Requete(long heure, byte[] data) {
+			this.heure = heure;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Envoie les requetes d'une capture a un serveur et affiche le bilan
+	 * @param fichier : fichier de capture
+	 * @param serveur : adresse et port du serveur
+	 * @param vitesse : facteur applique au rythme d'origine (2 = deux fois plus vite),
+	 * 0 pour envoyer sans attendre
+	 * @param out : destination du bilan
+	 * @throws IOException si la capture ne peut etre lue ou le socket ouvert
+	 */
+	public static void rejouer(String fichier, InetSocketAddress serveur, double vitesse, PrintStream out) throws IOException {
+		if (vitesse < 0) throw new IllegalArgumentException("La vitesse ne peut etre negative");
+		final List<Requete> requetes = new ArrayList<Requete>();
+		PacketCapture.parcourir(fichier, new PacketCapture.Visiteur() {
+			public void paquet(long heure, int sens, boolean tcp, InetSocketAddress client, byte[] data, int length) {
+				if (sens != PacketCapture.SENS_REQUETE || length < DNSMessage.HEADER_SIZE) return;
+				byte[] copie = new byte[length];
+				System.arraycopy(data, 0, copie, 0, length);
+				requetes.add(new Requete(heure, copie));
+			}
+		});
+		if (requetes.isEmpty()) {
+			out.println("Aucune requete dans " + fichier);
+			return;
+		}
+
+		final DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(TIMEOUT_RECEPTION_MS);
+		final AtomicLongArray envois = new AtomicLongArray(0x10000); //moment d'envoi par identifiant, 0 = aucun
+		final LatencyHistogram durees = new LatencyHistogram();
+		final LongAdder[] rcodes = new LongAdder[16];
+		for (int i = 0; i < rcodes.length; i++) rcodes[i] = new LongAdder();
+		final AtomicBoolean fin = new AtomicBoolean(false);
+
+		Thread reception = new Thread("dns-replay-reception") {
+			public void run() {
+				byte[] buff = new byte[Edns.MAX_UDP_SIZE];
+				DatagramPacket paquet = new DatagramPacket(buff, buff.length);
+				while (true) {
+					try {
+						socket.receive(paquet);
+					} catch (SocketTimeoutException e) {
+						if (fin.get()) return;
+						continue;
+					} catch (IOException e) {
+						return;
+					}
+					if (paquet.getLength() < DNSMessage.HEADER_SIZE) continue;
+					int id = ((buff[0] & 0xFF) << 8) | (buff[1] & 0xFF);
+					long envoi = envois.getAndSet(id, 0);
+					if (envoi == 0) continue; //reponse en double ou en retard
+					durees.enregistrerDepuis(envoi);
+					rcodes[buff[3] & 0x0F].increment();
+				}
+			}
+		};
+		reception.setDaemon(true);
+		reception.start();
+
+		out.println("Rejeu de " + requetes.size() + " requetes vers " + serveur
+				+ (vitesse > 0 ? " (vitesse x" + vitesse + ")" : " (sans attente)"));
+		long debut = System.nanoTime();
+		long heureDebut = requetes.get(0).heure;
+		for (Requete r : requetes) {
+			if (vitesse > 0) {
+				long cible = debut + (long) ((r.heure - heureDebut) * 1000 / vitesse);
+				long attente;
+				while ((attente = cible - System.nanoTime()) > 0) LockSupport.parkNanos(attente);
+			}
+			int id = ((r.data[0] & 0xFF) << 8) | (r.data[1] & 0xFF);
+			envois.set(id, System.nanoTime());
+			socket.send(new DatagramPacket(r.data, r.data.length, serveur));
+		}
+		long duree = System.nanoTime() - debut;
+
+		try {
+			Thread.sleep(ATTENTE_FIN_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fin.set(true);
+		try {
+			reception.join(2 * TIMEOUT_RECEPTION_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		socket.close();
+
+		long recues = durees.getCount();
+		out.println(requetes.size() + " requetes envoyees en " + duree / 1000000 + " ms ("
+				+ (long) (requetes.size() * 1e9 / Math.max(duree, 1)) + " requetes/s), "
+				+ recues + " reponses, " + (requetes.size() - recues) + " sans reponse");
+		StringBuilder sb = new StringBuilder("RCODE :");
+		for (int i = 0; i < rcodes.length; i++) {
+			long n = rcodes[i].sum();
+			if (n > 0) sb.append(' ').append(i).append('=').append(n);
+		}
+		out.println(sb);
+		out.println("Duree de reponse (us, a 25% pres) : p50=" + durees.quantile(0.5) + " p90=" + durees.quantile(0.9)
+				+ " p99=" + durees.quantile(0.99) + " max=" + durees.quantile(1.0));
+	}
+}
@@ -0,0 +1,311 @@
+package com.ets.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table DNS dans un format binaire compact, lue directement en memoire projetee (mmap).
+ *
+ * Le fichier n'est jamais deserialise : l'ouverture ne lit que l'en-tete, et une recherche
+ * (chercher) calcule le hachage du nom, sonde la table de hachage du fichier puis compare les
+ * octets du nom sur place, sans rien allouer; elle donne la position de l'entree, dont les
+ * RDATA ne sont lus qu'a la demande (rdatas). Le demarrage prend donc le meme temps quelle que
+ * soit la taille de la table, et seules les pages consultees sont chargees par le systeme.
+ *
+ * Format (entiers big-endian) :
+ * <pre>
+ * en-tete    : "DNSZ" | version (4) | nb cases (4, puissance de 2) | nb entrees (4)
+ * cases      : nb cases x position de l'entree (4), 0 = case vide
+ * entree     : longueur du nom (1) | nom en minuscules | type (2) | nb RDATA (2)
+ *              | nb RDATA x ( longueur (2) | RDATA )
+ * </pre>
+ * Une entree regroupe les enregistrements d'un meme nom et d'un meme type; les collisions
+ * sont resolues par sondage lineaire. Le fichier est limite a 2 Go (une seule projection).
+ */
+public class CompactZoneFile {
+	private final static int MAGIC = 0x444E535A; //"DNSZ"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 16;
+
+	private final String filename;
+	private final MappedByteBuffer map;
+	private final int slotMask;
+	private final int entryCount;
+
+	private CompactZoneFile(String filename, MappedByteBuffer map) throws IOException {
+		this.filename = filename;
+		this.map = map;
+		if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+			throw new IOException(filename + " n'est pas une table compacte (version " + VERSION + ")");
+		int slots = map.getInt(8);
+		if (slots <= 0 || (slots & (slots - 1)) != 0 || HEADER_SIZE + 4L * slots > map.capacity())
+			throw new IOException(filename + " : en-tete invalide");
+		this.slotMask = slots - 1;
+		this.entryCount = map.getInt(12);
+	}
+
+	/**
+	 * Projette une table compacte en memoire.
+	 * @param filename : fichier cree par convertir()
+	 * @return la table
+	 * @throws IOException si le fichier ne peut etre lu ou n'est pas une table compacte
+	 */
+	public static CompactZoneFile ouvrir(String filename) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(filename + " depasse 2 Go");
+			//la projection reste valide apres la fermeture du fichier
+			return new CompactZoneFile(filename, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param filename : fichier a tester
+	 * @return true si le fichier commence par l'identifiant d'une table compacte
+	 */
+	public static boolean estCompact(String filename) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(filename));
+			try {
+				return in.readInt() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return file name
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return le nombre d'entrees (nom, type) de la table
+	 */
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Recherche les enregistrements d'un type pour un nom.
+	 * @param hostname : nom normalise (minuscules, sans point final)
+	 * @param type : type demande
+	 * @return les RDATA, null si l'entree (nom, type) est absente
+	 */
+	public byte[][] lookup(String hostname, int type) {
+		int entry = chercher(hostname, 0, false, type);
+		return entry < 0 ? null : rdatas(entry);
+	}
+
+	/**
+	 * Recherche l'entree (nom, type) d'un nom ou d'un joker, sans rien allouer.
+	 * @param hostname : nom normalise (minuscules, sans point final)
+	 * @param debut : debut du nom cherche dans hostname; pour un joker, position du '.'
+	 * qui suit l'etiquette "*"
+	 * @param joker : true pour chercher "*" suivi de hostname a partir de debut
+	 * @param type : type demande
+	 * @return la position des RDATA de l'entree dans la projection (voir rdatas), -1 si
+	 * l'entree est absente
+	 */
+	public int chercher(String hostname, int debut, boolean joker, int type) {
+		int entry = find(hostname, debut, joker, type);
+		return entry < 0 ? -1 : entry + 1 + (map.get(entry) & 0xFF) + 2;
+	}
+
+	/**
+	 * Lit les RDATA d'une entree
+	 * @param p : position donnee par chercher (celle du nombre de RDATA)
+	 * @return les RDATA, copies de la projection
+	 */
+	public byte[][] rdatas(int p) {
+		int count = map.getShort(p) & 0xFFFF;
+		p += 2;
+		byte[][] rdatas = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			rdatas[i] = new byte[map.getShort(p) & 0xFFFF];
+			for (int j = 0; j < rdatas[i].length; j++) rdatas[i][j] = map.get(p + 2 + j);
+			p += 2 + rdatas[i].length;
+		}
+		return rdatas;
+	}
+
+	/**
+	 * @return la position de l'entree (nom, type), -1 si elle est absente
+	 */
+	private int find(String hostname, int debut, boolean joker, int type) {
+		int length = hostname.length() - debut + (joker ? 1 : 0);
+		if (length > 255) return -1;
+		int slot = hash(hostname, debut, joker) & slotMask;
+		for (int sondes = 0; sondes <= slotMask; sondes++) {
+			int entry = map.getInt(HEADER_SIZE + 4 * slot);
+			if (entry == 0) return -1;
+			if ((map.get(entry) & 0xFF) == length && memeNom(entry + 1, hostname, debut, joker)
+					&& (map.getShort(entry + 1 + length) & 0xFFFF) == type) {
+				return entry;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+		return -1;
+	}
+
+	private boolean memeNom(int p, String hostname, int debut, boolean joker) {
+		if (joker && map.get(p++) != '*') return false;
+		for (int i = debut; i < hostname.length(); i++) {
+			if (map.get(p++) != (byte) hostname.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hachage FNV-1a des caracteres (octets) du nom
+	 */
+	private static int hash(String hostname) {
+		return hash(hostname, 0, false);
+	}
+
+	/**
+	 * Hachage du nom hostname a partir de debut, precede de "*" pour un joker
+	 */
+	private static int hash(String hostname, int debut, boolean joker) {
+		int h = 0x811C9DC5;
+		if (joker) {
+			h ^= '*';
+			h *= 0x01000193;
+		}
+		for (int i = debut; i < hostname.length(); i++) {
+			h ^= hostname.charAt(i) & 0xFF;
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Affiche le contenu de la table au format du fichier texte (voir RecordData)
+	 * @param out : destination
+	 */
+	public void lister(PrintStream out) {
+		for (int slot = 0; slot <= slotMask; slot++) {
+			int entry = map.getInt(HEADER_SIZE + 4 * slot);
+			if (entry == 0) continue;
+			int length = map.get(entry) & 0xFF;
+			StringBuilder nom = new StringBuilder(length);
+			for (int i = 0; i < length; i++) nom.append((char) (map.get(entry + 1 + i) & 0xFF));
+			int p = entry + 1 + length;
+			int type = map.getShort(p) & 0xFFFF;
+			for (byte[] rdata : rdatas(p + 2)) {
+				out.println(RecordData.formatLigne(nom.toString(), type, rdata));
+			}
+		}
+	}
+
+	/**
+	 * Convertit un fichier DNS texte (voir RecordData) en table compacte.
+	 * @param texte : fichier source
+	 * @param binaire : fichier a creer
+	 * @return le nombre d'entrees ecrites
+	 * @throws IOException
+	 */
+	public static int convertir(String texte, String binaire) throws IOException {
+		//regroupement des enregistrements par nom puis par type
+		Map<String, Map<Integer, List<byte[]>>> noms = new LinkedHashMap<String, Map<Integer, List<byte[]>>>();
+		int entrees = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(texte));
+		try {
+			String uneligne;
+			while ((uneligne = reader.readLine()) != null) {
+				RecordData.Ligne ligne;
+				try {
+					ligne = RecordData.parseLigne(uneligne);
+				} catch (IllegalArgumentException e) {
+					Log.warn("Ligne ignoree dans " + texte + " : " + uneligne);
+					continue;
+				}
+				if (ligne == null || ligne.nom.length() > 255) continue;
+				Map<Integer, List<byte[]>> types = noms.get(ligne.nom);
+				if (types == null) {
+					types = new LinkedHashMap<Integer, List<byte[]>>(2);
+					noms.put(ligne.nom, types);
+				}
+				List<byte[]> rdatas = types.get(ligne.type);
+				if (rdatas == null) {
+					rdatas = new ArrayList<byte[]>(1);
+					types.put(ligne.type, rdatas);
+					entrees++;
+				}
+				if (!contient(rdatas, ligne.rdata) && rdatas.size() < 0xFFFF) rdatas.add(ligne.rdata);
+			}
+		} finally {
+			reader.close();
+		}
+
+		int slots = Integer.highestOneBit(Math.max(2, entrees * 2 - 1)) << 1;
+		int[] table = new int[slots];
+		long position = HEADER_SIZE + 4L * slots;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaire), 1 << 16));
+		try {
+			//premier passage : position de chaque entree dans la table de hachage
+			for (Map.Entry<String, Map<Integer, List<byte[]>>> e : noms.entrySet()) {
+				for (List<byte[]> rdatas : e.getValue().values()) {
+					if (position > Integer.MAX_VALUE) throw new IOException("La table depasse 2 Go");
+					int slot = hash(e.getKey()) & (slots - 1);
+					while (table[slot] != 0) slot = (slot + 1) & (slots - 1);
+					table[slot] = (int) position;
+					position += 1 + e.getKey().length() + 4;
+					for (byte[] rdata : rdatas) position += 2 + rdata.length;
+				}
+			}
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(slots);
+			out.writeInt(entrees);
+			for (int entry : table) out.writeInt(entry);
+			//second passage : les entrees, dans le meme ordre
+			for (Map.Entry<String, Map<Integer, List<byte[]>>> e : noms.entrySet()) {
+				for (Map.Entry<Integer, List<byte[]>> t : e.getValue().entrySet()) {
+					out.writeByte(e.getKey().length());
+					out.writeBytes(e.getKey());
+					out.writeShort(t.getKey());
+					out.writeShort(t.getValue().size());
+					for (byte[] rdata : t.getValue()) {
+						out.writeShort(rdata.length);
+						out.write(rdata);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return entrees;
+	}
+
+	private static boolean contient(List<byte[]> rdatas, byte[] rdata) {
+		for (byte[] r : rdatas) {
+			if (Arrays.equals(r, rdata)) return true;
+		}
+		return false;
+	}
+}
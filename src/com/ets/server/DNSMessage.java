@@ -0,0 +1,385 @@
+package com.ets.server;
+
+/**
+ * Lecture d'un message DNS directement dans le tampon recu (format "wire").
+ *
+ * L'objet est un poids-mouche : wrap() l'associe a un tampon et toutes les lectures
+ * se font ensuite par position (offset) dans ce tampon, sans copie ni allocation.
+ * Une meme instance peut donc etre reutilisee pour chaque paquet d'un thread.
+ *
+ * Les enregistrements (RR) sont designes par la position de leur nom; les methodes
+ * rr*() en extraient le type, la classe, le TTL et le RDATA. Les noms compresses
+ * (pointeurs 0xC0, RFC 1035 4.1.4) sont suivis.
+ */
+public class DNSMessage {
+	public final static int HEADER_SIZE = 12;
+	public final static int MAX_NAME_LENGTH = 255;
+	private final static int MAX_POINTERS = 64; //protection contre les boucles de pointeurs
+
+	public final static int TYPE_A = 1;
+	public final static int TYPE_NS = 2;
+	public final static int TYPE_CNAME = 5;
+	public final static int TYPE_SOA = 6;
+	public final static int TYPE_MX = 15;
+	public final static int TYPE_TXT = 16;
+	public final static int TYPE_AAAA = 28;
+	public final static int TYPE_OPT = 41;
+	public final static int CLASS_IN = 1;
+
+	public final static int RCODE_NOERROR = 0;
+	public final static int RCODE_FORMERR = 1;
+	public final static int RCODE_SERVFAIL = 2;
+	public final static int RCODE_NXDOMAIN = 3;
+
+	private byte[] buf = null;
+	private int length = 0;
+	private int questionEnd = -1; //position apres la premiere question
+	private int firstRecord = -1; //position du premier RR (section reponse)
+
+	/**
+	 * Associe le lecteur a un message.
+	 * @param buf : tampon contenant le message
+	 * @param length : taille du message
+	 * @return false si l'en-tete ou la premiere question sont invalides
+	 */
+	public boolean wrap(byte[] buf, int length){
+		this.buf = buf;
+		this.length = Math.min(length, buf.length);
+		this.questionEnd = -1;
+		this.firstRecord = -1;
+		if (this.length < HEADER_SIZE) return false;
+
+		int offset = HEADER_SIZE;
+		for (int i = getQdcount(); i > 0; i--) {
+			offset = skipName(offset);
+			if (offset < 0 || offset + 4 > this.length) return false;
+			offset += 4;
+			if (questionEnd < 0) questionEnd = offset;
+		}
+		firstRecord = offset;
+		return true;
+	}
+
+	/**
+	 * @return le tampon du message
+	 */
+	public byte[] getBuffer(){
+		return buf;
+	}
+
+	/**
+	 * @return la taille du message
+	 */
+	public int getLength(){
+		return length;
+	}
+
+	//------------------------------------------------------------------ en-tete
+
+	public int getId(){
+		return u16(0);
+	}
+
+	public int getFlags(){
+		return u16(2);
+	}
+
+	/**
+	 * @return true si le message est une reponse (bit QR)
+	 */
+	public boolean isResponse(){
+		return (buf[2] & 0x80) != 0;
+	}
+
+	public int getOpcode(){
+		return (buf[2] >> 3) & 0x0F;
+	}
+
+	public boolean isAuthoritative(){
+		return (buf[2] & 0x04) != 0;
+	}
+
+	public boolean isTruncated(){
+		return (buf[2] & 0x02) != 0;
+	}
+
+	public boolean isRecursionDesired(){
+		return (buf[2] & 0x01) != 0;
+	}
+
+	public int getRcode(){
+		return buf[3] & 0x0F;
+	}
+
+	public int getQdcount(){
+		return u16(4);
+	}
+
+	public int getAncount(){
+		return u16(6);
+	}
+
+	public int getNscount(){
+		return u16(8);
+	}
+
+	public int getArcount(){
+		return u16(10);
+	}
+
+	//---------------------------------------------------------------- question
+
+	/**
+	 * @return true si le message contient au moins une question
+	 */
+	public boolean hasQuestion(){
+		return questionEnd > 0;
+	}
+
+	/**
+	 * @return la position du nom de la premiere question
+	 */
+	public int getQnameOffset(){
+		return HEADER_SIZE;
+	}
+
+	/**
+	 * @return la position qui suit la premiere question
+	 */
+	public int getQuestionEnd(){
+		return questionEnd;
+	}
+
+	public int getQtype(){
+		return u16(questionEnd - 4);
+	}
+
+	public int getQclass(){
+		return u16(questionEnd - 2);
+	}
+
+	/**
+	 * @return la position qui suit toutes les questions (debut de la section reponse)
+	 */
+	public int getRecordsOffset(){
+		return firstRecord;
+	}
+
+	//-------------------------------------------------------------------- noms
+
+	/**
+	 * Saute un nom.
+	 * @param offset : position du nom
+	 * @return la position qui suit le nom dans le message, -1 si le nom est invalide
+	 */
+	public int skipName(int offset){
+		while (offset < length) {
+			int len = buf[offset] & 0xFF;
+			if (len == 0) return offset + 1;
+			if ((len & 0xC0) == 0xC0) return offset + 2 <= length ? offset + 2 : -1;
+			if ((len & 0xC0) != 0) return -1; //types d'etiquettes non supportes
+			offset += len + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Suit les pointeurs de compression jusqu'a une etiquette reelle.
+	 * @param offset : position d'une etiquette ou d'un pointeur
+	 * @return la position de l'etiquette (son octet de longueur), -1 si invalide
+	 */
+	public int label(int offset){
+		for (int sauts = 0; offset >= 0 && offset < length; sauts++) {
+			int len = buf[offset] & 0xFF;
+			if ((len & 0xC0) != 0xC0) return (len & 0xC0) == 0 && offset + len < length ? offset : -1;
+			if (sauts == MAX_POINTERS || offset + 1 >= length) return -1;
+			offset = ((len & 0x3F) << 8) | (buf[offset + 1] & 0xFF);
+		}
+		return -1;
+	}
+
+	/**
+	 * @param labelOffset : position d'une etiquette retournee par label()
+	 * @return la longueur de l'etiquette, 0 pour la racine
+	 */
+	public int labelLength(int labelOffset){
+		return buf[labelOffset] & 0xFF;
+	}
+
+	/**
+	 * @param labelOffset : position d'une etiquette retournee par label()
+	 * @return la position de l'etiquette suivante (ou du pointeur suivant), -1 apres la racine
+	 */
+	public int nextLabel(int labelOffset){
+		int len = buf[labelOffset] & 0xFF;
+		return len == 0 ? -1 : labelOffset + len + 1;
+	}
+
+	/**
+	 * Remplit un tableau avec la position de chaque etiquette d'un nom (hors racine).
+	 * @param offset : position du nom
+	 * @param labels : tableau a remplir
+	 * @return le nombre d'etiquettes, -1 si le nom est invalide ou a trop d'etiquettes
+	 */
+	public int labelOffsets(int offset, int[] labels){
+		int count = 0, total = 0;
+		for (int l = label(offset); l >= 0; l = label(nextLabel(l))) {
+			int len = labelLength(l);
+			if (len == 0) return count;
+			total += len + 1;
+			if (count == labels.length || total > MAX_NAME_LENGTH) return -1;
+			labels[count++] = l;
+		}
+		return -1;
+	}
+
+	/**
+	 * Ajoute un nom au format texte (etiquettes separees par des points, sans point final).
+	 * @param offset : position du nom
+	 * @param sb : destination
+	 * @return false si le nom est invalide
+	 */
+	public boolean appendName(int offset, StringBuilder sb){
+		int total = 0;
+		boolean premier = true;
+		for (int l = label(offset); l >= 0; l = label(nextLabel(l))) {
+			int len = labelLength(l);
+			if (len == 0) return true;
+			total += len + 1;
+			if (total > MAX_NAME_LENGTH) return false;
+			if (!premier) sb.append('.');
+			premier = false;
+			for (int i = 1; i <= len; i++) {
+				sb.append((char) (buf[l + i] & 0xFF));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copie un nom sans compression (pointeurs suivis).
+	 * @param offset : position du nom
+	 * @param out : destination
+	 * @param p : position d'ecriture dans out
+	 * @return la position qui suit le nom copie, -1 si le nom est invalide ou ne tient pas
+	 */
+	public int copyName(int offset, byte[] out, int p){
+		int total = 0;
+		for (int l = label(offset); l >= 0; l = label(nextLabel(l))) {
+			int len = labelLength(l);
+			total += len + 1;
+			if (total > MAX_NAME_LENGTH || p + len + 1 > out.length) return -1;
+			System.arraycopy(buf, l, out, p, len + 1);
+			p += len + 1;
+			if (len == 0) return p;
+		}
+		return -1;
+	}
+
+	//------------------------------------------------------------ enregistrements
+
+	/**
+	 * @return la position du premier enregistrement (section reponse), -1 s'il n'y en a pas
+	 */
+	public int firstRecord(){
+		return getAncount() + getNscount() + getArcount() > 0 && firstRecord + 10 < length ? firstRecord : -1;
+	}
+
+	/**
+	 * Les enregistrements des trois sections se suivent; l'appelant compte ceux qu'il a lus
+	 * pour savoir dans quelle section il se trouve (ANCOUNT, puis NSCOUNT, puis ARCOUNT).
+	 * @param rr : position d'un enregistrement
+	 * @return la position de l'enregistrement suivant, -1 s'il n'y en a plus ou s'il est invalide
+	 */
+	public int nextRecord(int rr){
+		int next = rrDataOffset(rr);
+		if (next < 0) return -1;
+		next += rrDataLength(rr);
+		return next + 10 < length && skipName(next) > 0 ? next : -1;
+	}
+
+	public int rrType(int rr){
+		return u16(skipName(rr));
+	}
+
+	public int rrClass(int rr){
+		return u16(skipName(rr) + 2);
+	}
+
+	/**
+	 * @return la position du TTL (4 octets) de l'enregistrement
+	 */
+	public int rrTtlOffset(int rr){
+		return skipName(rr) + 4;
+	}
+
+	/**
+	 * @return le TTL en secondes
+	 */
+	public long rrTtl(int rr){
+		return u32(rrTtlOffset(rr));
+	}
+
+	public int rrDataLength(int rr){
+		return u16(skipName(rr) + 8);
+	}
+
+	/**
+	 * @return la position du RDATA, -1 si l'enregistrement depasse la fin du message
+	 */
+	public int rrDataOffset(int rr){
+		int fixe = skipName(rr);
+		if (fixe < 0 || fixe + 10 > length) return -1;
+		int data = fixe + 10;
+		return data + u16(fixe + 8) <= length ? data : -1;
+	}
+
+	/**
+	 * Cherche l'enregistrement OPT (EDNS) dans la section additionnelle.
+	 * @return sa position, -1 s'il n'y en a pas
+	 */
+	public int findOpt(){
+		int arcount = getArcount();
+		if (arcount == 0) return -1;
+		int avant = getAncount() + getNscount();
+		int rr = firstRecord();
+		for (int i = 0; i < avant && rr >= 0; i++) rr = nextRecord(rr);
+		for (int i = 0; i < arcount && rr >= 0; i++, rr = nextRecord(rr)) {
+			if (rrDataOffset(rr) < 0) return -1;
+			if (rrType(rr) == TYPE_OPT) return rr;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param opt : position d'un enregistrement OPT
+	 * @return la version d'EDNS demandee
+	 */
+	public int optVersion(int opt){
+		return buf[rrTtlOffset(opt) + 1] & 0xFF;
+	}
+
+	/**
+	 * @return les 4 octets du RDATA (adresse d'un enregistrement A) sous forme d'entier
+	 */
+	public int rrAddress(int rr){
+		return (int) u32(rrDataOffset(rr));
+	}
+
+	//------------------------------------------------------------------ octets
+
+	/**
+	 * @return l'entier non signe de 16 bits a la position donnee
+	 */
+	public int u16(int offset){
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * @return l'entier non signe de 32 bits a la position donnee
+	 */
+	public long u32(int offset){
+		return ((long) (buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16)
+				| ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+	}
+}
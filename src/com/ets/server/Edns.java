@@ -0,0 +1,155 @@
+package com.ets.server;
+
+/**
+ * Extensions EDNS(0) (RFC 6891) et respect de la taille maximale d'une reponse.
+ *
+ * Un client qui envoie un enregistrement OPT annonce la taille des paquets UDP qu'il peut
+ * recevoir; sans OPT, la limite est de 512 octets (RFC 1035). Chaque reponse passe par
+ * ajuster() avant l'envoi : l'OPT eventuel de l'autre serveur est retire, le notre est ajoute
+ * si le client en a envoye un, et la reponse est coupee a la limite. Seuls des enregistrements
+ * complets sont gardes; le bit TC est mis si une partie des sections reponse ou autorite a du
+ * etre retiree (la section additionnelle peut etre reduite sans TC, RFC 2181 section 9).
+ */
+public class Edns {
+	public final static int MAX_UDP_SIZE = 4096; //taille des tampons de reception et de reponse
+	public final static int DEFAULT_UDP_SIZE = 1232; //taille annoncee, evite la fragmentation IP
+	public final static int MIN_UDP_SIZE = 512; //limite sans EDNS (RFC 1035 section 4.2.1)
+	public final static int MAX_TCP_SIZE = 0xFFFF;
+	public final static int OPT_SIZE = 11; //nom racine(1) type(2) classe(2) ttl(4) rdlength(2)
+	private final static int RCODE_BADVERS = 16;
+
+	private Edns(){
+	}
+
+	/**
+	 * @param query : la requete du client, deja lue
+	 * @param opt : position de son enregistrement OPT (DNSMessage.findOpt()), -1 s'il n'y en a pas
+	 * @param annoncee : taille maximale annoncee par ce serveur
+	 * @return la taille maximale d'une reponse UDP a cette requete
+	 */
+	public static int limite(DNSMessage query, int opt, int annoncee){
+		if (opt < 0) return MIN_UDP_SIZE;
+		return Math.max(MIN_UDP_SIZE, Math.min(query.rrClass(opt), annoncee));
+	}
+
+	/**
+	 * Limite la taille annoncee dans l'OPT d'une requete avant sa redirection a celle des
+	 * tampons qui recoivent les reponses : une reponse plus grande serait coupee par le systeme,
+	 * sans TC, au lieu d'arriver tronquee et d'etre redemandee en TCP.
+	 * @param query : la requete du client, deja lue (son tampon est modifie)
+	 * @param opt : position de son enregistrement OPT, -1 s'il n'y en a pas
+	 * @param max : taille des tampons de reception des reponses
+	 */
+	public static void limiterAnnonce(DNSMessage query, int opt, int max){
+		if (opt < 0 || query.rrClass(opt) <= max) return;
+		int classe = query.rrTtlOffset(opt) - 2;
+		query.getBuffer()[classe] = (byte) (max >> 8);
+		query.getBuffer()[classe + 1] = (byte) max;
+	}
+
+	/**
+	 * Ecrit un enregistrement OPT
+	 * @return la position qui suit l'enregistrement
+	 */
+	private static int ecrireOpt(byte[] out, int p, int udpSize, int extRcode){
+		out[p] = 0; //nom racine
+		out[p + 1] = 0;
+		out[p + 2] = DNSMessage.TYPE_OPT;
+		out[p + 3] = (byte) (udpSize >> 8); //la classe porte la taille annoncee
+		out[p + 4] = (byte) udpSize;
+		out[p + 5] = (byte) extRcode; //RCODE etendu, version 0, pas de drapeaux
+		out[p + 6] = 0;
+		out[p + 7] = 0;
+		out[p + 8] = 0;
+		out[p + 9] = 0; //pas d'options
+		out[p + 10] = 0;
+		return p + OPT_SIZE;
+	}
+
+	/**
+	 * Prepare une reponse pour l'envoi : OPT retire ou ajoute et taille limitee.
+	 * @param lecteur : lecteur de travail (son message courant est remplace)
+	 * @param out : la reponse, modifiee sur place
+	 * @param length : sa taille, -1 si elle n'a pu etre construite
+	 * @param limite : taille maximale de la reponse a envoyer
+	 * @param edns : true si la requete du client contenait un OPT
+	 * @param annoncee : taille annoncee dans notre OPT
+	 * @return la nouvelle taille, -1 si la reponse ne peut etre envoyee
+	 */
+	public static int ajuster(DNSMessage lecteur, byte[] out, int length, int limite, boolean edns, int annoncee){
+		if (length < 0) return -1;
+		limite = Math.min(limite, out.length);
+		int opt = edns ? OPT_SIZE : 0;
+		//cas courant : aucune section additionnelle, la reponse tient avec notre OPT
+		if (out[10] == 0 && out[11] == 0 && length + opt <= limite) {
+			if (!edns) return length;
+			out[11] = 1;
+			return ecrireOpt(out, length, annoncee, 0);
+		}
+		if (!lecteur.wrap(out, length)) return length <= limite ? length : -1;
+
+		int an = lecteur.getAncount(), ns = lecteur.getNscount();
+		int total = an + ns + lecteur.getArcount();
+		int garde = lecteur.getRecordsOffset(); //fin des enregistrements gardes
+		int gardes = 0, reels = total;
+		boolean optPresent = false;
+		int rr = total > 0 ? lecteur.firstRecord() : -1;
+		for (int i = 0; i < total; i++) {
+			if (rr < 0 || lecteur.rrDataOffset(rr) < 0) return length <= limite ? length : -1;
+			int fin = lecteur.rrDataOffset(rr) + lecteur.rrDataLength(rr);
+			if (i >= an + ns && lecteur.rrType(rr) == DNSMessage.TYPE_OPT) {
+				if (fin == length) { //dernier enregistrement : remplace par le notre
+					reels--;
+					break;
+				}
+				optPresent = true;
+			}
+			if (fin + opt > limite) break;
+			garde = fin;
+			gardes++;
+			rr = i + 1 < total ? lecteur.nextRecord(rr) : -1;
+		}
+
+		int a = Math.min(gardes, an);
+		int n = Math.min(gardes - a, ns);
+		int r = gardes - a - n;
+		if (gardes < an + ns) out[2] |= 0x02; //TC
+		boolean ajout = edns && !optPresent;
+		if (ajout) {
+			garde = ecrireOpt(out, garde, annoncee, 0);
+			r++;
+		}
+		out[6] = (byte) (a >> 8);
+		out[7] = (byte) a;
+		out[8] = (byte) (n >> 8);
+		out[9] = (byte) n;
+		out[10] = (byte) (r >> 8);
+		out[11] = (byte) r;
+		if (gardes < reels && Log.isDebug()) Log.debug("Answer truncated to " + garde + " bytes (" + gardes + "/" + reels + " records)");
+		return garde;
+	}
+
+	/**
+	 * Ecrit la reponse BADVERS a une requete d'une version d'EDNS non supportee (RFC 6891 6.1.3)
+	 * @param query : la requete, deja lue
+	 * @param out : tampon de destination
+	 * @param annoncee : taille annoncee dans notre OPT
+	 * @return la taille de la reponse
+	 */
+	public static int repondreBadVers(DNSMessage query, byte[] out, int annoncee){
+		int questionEnd = query.getQuestionEnd();
+		byte[] in = query.getBuffer();
+		System.arraycopy(in, 0, out, 0, questionEnd);
+		out[2] = (byte) (0x80 | (in[2] & 0x79)); //QR, opcode et RD repris
+		out[3] = (byte) 0x80; //RA, les 4 bits bas de BADVERS sont nuls
+		out[4] = 0;
+		out[5] = 1;
+		out[6] = 0;
+		out[7] = 0;
+		out[8] = 0;
+		out[9] = 0;
+		out[10] = 0;
+		out[11] = 1;
+		return ecrireOpt(out, questionEnd, annoncee, RCODE_BADVERS >> 4);
+	}
+}
@@ -0,0 +1,436 @@
+package com.ets.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Redirection des requetes vers un groupe de serveurs DNS.
+ *
+ * Pour chaque serveur, le temps de reponse lisse (SRTT, moyenne mobile exponentielle de
+ * facteur 1/8 comme pour TCP) et les echecs consecutifs sont suivis. Une requete est envoyee
+ * au serveur disponible le plus rapide. Sans reponse apres le delai d'attente, elle est
+ * renvoyee a un autre serveur, avec un nouvel identifiant; apres le dernier essai, le client
+ * recoit une reponse SERVFAIL au lieu d'attendre indefiniment.
+ *
+ * La sante des serveurs est verifiee par les requetes elles-memes : un serveur qui n'a pas
+ * repondu MAX_ECHECS fois de suite est mis a l'ecart pour une duree qui double a chaque
+ * nouvel echec, puis recoit de nouveau des requetes. Le SRTT d'un serveur non choisi
+ * diminue d'un quart par seconde, pour qu'un serveur lent a un moment donne soit essaye de
+ * nouveau; la diminution depend du temps ecoule et non du nombre de requetes, sinon un
+ * serveur en panne serait repris presque aussitot sous forte charge.
+ *
+ * Une reponse n'est acceptee que du serveur auquel la requete a ete envoyee en dernier :
+ * une reponse tardive d'un serveur deja abandonne ne termine pas la requete et ne modifie
+ * pas les statistiques d'un autre serveur.
+ *
+ * Une question deja envoyee et encore sans reponse n'est pas envoyee une seconde fois :
+ * le client est ajoute a ceux qui attendent la reponse (voir PendingQueryTable.rejoindre).
+ *
+ * Les requetes partent des sockets de l'UpstreamSocketPool s'il est utilise, sinon du
+ * socket UDP par lequel le client les a envoyees; celles des clients TCP partent alors du
+ * socket donne par setFluxSink. Une reponse tronquee (TC) est redemandee en TCP au meme
+ * serveur (demanderTcp).
+ *
+ * Le thread ne fait que reprendre les requetes expirees de la PendingQueryTable.
+ */
+public class Forwarder extends Thread {
+	public final static long DEFAULT_TIMEOUT_MS = 1000; //attente d'une reponse avant un nouvel essai
+	public final static int DEFAULT_RETRIES = 2; //nouveaux essais apres le premier envoi
+	private final static long TICK_MS = 50; //frequence de verification des expirations
+	private final static int MAX_ECHECS = 3; //echecs consecutifs avant la mise a l'ecart
+	private final static long BACKOFF_MS = 1000; //premiere mise a l'ecart
+	private final static long MAX_BACKOFF_MS = 30000;
+	private final static long SRTT_INITIAL_US = 10000; //bas, pour que chaque serveur soit essaye
+	private final static long VIEILLISSEMENT_MS = 1000; //periode de la diminution du SRTT d'un serveur non choisi
+	private final static int MAX_VIEILLISSEMENTS = 16; //au-dela, le SRTT est deja revenu pres de 0
+
+	/**
+	 * Un serveur DNS de redirection et ses statistiques
+	 */
+	public static class Upstream {
+		private final InetSocketAddress adresse;
+		private long srtt = SRTT_INITIAL_US; //microsecondes
+		private int echecs = 0; //echecs consecutifs
+		private long horsServiceJusqua = 0; //fin de la mise a l'ecart (ms)
+		private long vieilli = System.currentTimeMillis(); //dernier choix ou derniere diminution du SRTT (ms)
+		private long envois = 0, reponses = 0, expirations = 0;
+		private final LatencyHistogram rtt = new LatencyHistogram(); //temps de reponse mesures
+
+		Upstream(InetSocketAddress adresse) {
+			this.adresse = adresse;
+		}
+
+		public InetSocketAddress getAdresse() {
+			return adresse;
+		}
+
+		/**
+		 * @return le temps de reponse lisse en microsecondes
+		 */
+		public synchronized long getSrtt() {
+			return srtt;
+		}
+
+		public synchronized long getEnvois() {
+			return envois;
+		}
+
+		public synchronized long getReponses() {
+			return reponses;
+		}
+
+		public synchronized long getExpirations() {
+			return expirations;
+		}
+
+		/**
+		 * @return la distribution des temps de reponse du serveur
+		 */
+		public LatencyHistogram getRtt() {
+			return rtt;
+		}
+
+		/**
+		 * @return true si le serveur n'est pas mis a l'ecart
+		 */
+		public synchronized boolean isDisponible() {
+			return horsServiceJusqua <= System.currentTimeMillis();
+		}
+
+		public String toString() {
+			return adresse.getAddress().getHostAddress() + ":" + adresse.getPort();
+		}
+	}
+
+	private final Upstream[] upstreams;
+	private final PendingQueryTable pendingQueries;
+	private final long timeoutMillis;
+	private final int retries;
+	private volatile PacketSink upstreamSink = null; //sockets de redirection, null pour le socket du client
+	private volatile PacketSink fluxSink = null; //envoi UDP des requetes des clients TCP quand upstreamSink est null
+	private volatile Metrics metrics = null; //compte les SERVFAIL envoyes, null si aucun
+	private volatile boolean stop = false;
+
+	/**
+	 * Constructeur
+	 * @param serveurs : serveurs de redirection
+	 * @param timeoutMillis : attente d'une reponse avant de renvoyer la requete a un autre serveur
+	 * @param retries : nombre de nouveaux essais apres le premier envoi
+	 */
+	public Forwarder(InetSocketAddress[] serveurs, long timeoutMillis, int retries) {
+		super("dns-forwarder");
+		if (serveurs.length == 0) throw new IllegalArgumentException("Il faut au moins un serveur de redirection");
+		if (retries < 0) throw new IllegalArgumentException("Le nombre d'essais ne peut etre negatif");
+		this.upstreams = new Upstream[serveurs.length];
+		for (int i = 0; i < serveurs.length; i++) {
+			this.upstreams[i] = new Upstream(serveurs[i]);
+		}
+		this.pendingQueries = new PendingQueryTable(PendingQueryTable.DEFAULT_CAPACITY, timeoutMillis);
+		this.timeoutMillis = timeoutMillis;
+		this.retries = retries;
+		setDaemon(true);
+	}
+
+	/**
+	 * Lit une liste de serveurs "adresse[:port]" separes par des virgules
+	 * @param liste : la liste (ex "8.8.8.8,1.1.1.1:53")
+	 * @param port : port des serveurs qui n'en precisent pas
+	 * @return les adresses des serveurs
+	 * @throws IOException si une adresse est invalide
+	 */
+	public static InetSocketAddress[] parseServeurs(String liste, int port) throws IOException {
+		String[] noms = liste.split(",");
+		InetSocketAddress[] serveurs = new InetSocketAddress[noms.length];
+		for (int i = 0; i < noms.length; i++) {
+			String nom = noms[i].trim();
+			int p = port;
+			int deuxPoints = nom.lastIndexOf(':');
+			if (deuxPoints > 0 && nom.indexOf(':') == deuxPoints) { //un seul ':' : pas une adresse IPv6
+				try {
+					p = Integer.parseInt(nom.substring(deuxPoints + 1));
+				} catch (NumberFormatException e) {
+					throw new IOException("Port invalide : " + nom);
+				}
+				nom = nom.substring(0, deuxPoints);
+			}
+			serveurs[i] = new InetSocketAddress(InetAddress.getByName(nom), p);
+		}
+		return serveurs;
+	}
+
+	/**
+	 * @param sink : sockets d'envoi des requetes (UpstreamSocketPool), null pour envoyer
+	 * par le socket sur lequel le client a ete recu
+	 */
+	public void setUpstreamSink(PacketSink sink) {
+		this.upstreamSink = sink;
+	}
+
+	/**
+	 * @param sink : socket UDP d'envoi des requetes recues en TCP, utilise seulement si aucun
+	 * upstreamSink n'est donne (une connexion TCP ne peut transporter une requete vers un serveur)
+	 */
+	public void setFluxSink(PacketSink sink) {
+		this.fluxSink = sink;
+	}
+
+	/**
+	 * @param metrics : compteurs ou sont comptees les reponses SERVFAIL envoyees par ce thread
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return les serveurs de redirection
+	 */
+	public Upstream[] getUpstreams() {
+		return upstreams;
+	}
+
+	/**
+	 * @return la table des requetes en attente
+	 */
+	public PendingQueryTable getPendingQueries() {
+		return pendingQueries;
+	}
+
+	/**
+	 * Redirige une question d'un client vers le serveur le plus rapide, sauf si la meme question
+	 * est deja en attente d'une reponse. La requete est copiee : le tampon peut etre reutilise
+	 * des le retour.
+	 * @param data : la requete du client
+	 * @param length : sa taille
+	 * @param client : adresse et port du client
+	 * @param clientId : identifiant de la requete du client
+	 * @param name : nom demande
+	 * @param qtype : type de la question
+	 * @param qclass : classe de la question
+	 * @param sink : moyen d'envoi de la requete et de la reponse au client
+	 * @return false si trop de requetes sont deja en attente
+	 * @throws IOException si l'envoi echoue
+	 */
+	public boolean transmettre(byte[] data, int length, InetSocketAddress client, int clientId,
+			String name, int qtype, int qclass, PacketSink sink) throws IOException {
+		byte[] requete = new byte[length];
+		System.arraycopy(data, 0, requete, 0, length);
+		PendingQueryTable.Entry e = new PendingQueryTable.Entry(clientId, client, name, qtype, qclass, sink, requete);
+		if (pendingQueries.rejoindre(e)) {
+			if (Log.isDebug()) Log.debug("Same question already sent for " + name + ", waiting for its answer");
+			return true;
+		}
+		return envoyer(e, null);
+	}
+
+	/**
+	 * Associe une reponse recue a la requete en attente et met a jour les statistiques du serveur.
+	 * @param reponse : la reponse, deja lue
+	 * @param name : nom de la question de la reponse
+	 * @param source : emetteur de la reponse
+	 * @return la requete du client, null si la reponse n'est pas attendue de ce serveur
+	 */
+	public PendingQueryTable.Entry recevoir(DNSMessage reponse, String name, InetSocketAddress source) {
+		Upstream upstream = trouver(source);
+		if (upstream == null) return null;
+		PendingQueryTable.Entry e = pendingQueries.take(reponse.getId(), upstream, name, reponse.getQtype(), reponse.getQclass());
+		if (e == null) return null;
+		long rtt = (System.nanoTime() - e.getEnvoi()) / 1000;
+		upstream.rtt.enregistrer(rtt);
+		synchronized (upstream) {
+			upstream.reponses++;
+			upstream.echecs = 0;
+			upstream.horsServiceJusqua = 0;
+			upstream.srtt += (rtt - upstream.srtt) >> 3;
+		}
+		return e;
+	}
+
+	/**
+	 * @return le serveur d'adresse source, null si ce n'est pas un serveur de redirection
+	 */
+	private Upstream trouver(InetSocketAddress source) {
+		for (Upstream u : upstreams) {
+			if (u.adresse.equals(source)) return u;
+		}
+		return null;
+	}
+
+	/**
+	 * Choisit le serveur disponible dont le SRTT est le plus bas. Si tous sont mis a l'ecart,
+	 * celui qui redevient disponible le plus tot est choisi.
+	 * @param exclu : serveur a eviter (celui qui n'a pas repondu), null si aucun
+	 */
+	private Upstream choisir(Upstream exclu) {
+		long now = System.currentTimeMillis();
+		Upstream meilleur = null, reserve = null;
+		long meilleurSrtt = Long.MAX_VALUE, reserveFin = Long.MAX_VALUE;
+		for (Upstream u : upstreams) {
+			if (u == exclu && upstreams.length > 1) continue;
+			synchronized (u) {
+				if (u.horsServiceJusqua <= now) {
+					if (u.srtt < meilleurSrtt) {
+						meilleur = u;
+						meilleurSrtt = u.srtt;
+					}
+				} else if (u.horsServiceJusqua < reserveFin) {
+					reserve = u;
+					reserveFin = u.horsServiceJusqua;
+				}
+			}
+		}
+		Upstream choisi = meilleur != null ? meilleur : reserve;
+		for (Upstream u : upstreams) {
+			synchronized (u) {
+				if (u == choisi) {
+					u.envois++;
+					u.vieilli = now;
+				} else if (now - u.vieilli >= VIEILLISSEMENT_MS) {
+					//vieillissement des serveurs non choisis, un quart par periode ecoulee
+					long periodes = Math.min((now - u.vieilli) / VIEILLISSEMENT_MS, MAX_VIEILLISSEMENTS);
+					for (long i = 0; i < periodes; i++) u.srtt -= u.srtt >> 2;
+					u.vieilli = now;
+				}
+			}
+		}
+		return choisi;
+	}
+
+	/**
+	 * Enregistre la requete et l'envoie au serveur choisi
+	 * @return false si la table des requetes en attente est pleine
+	 */
+	private boolean envoyer(PendingQueryTable.Entry e, Upstream exclu) throws IOException {
+		Upstream upstream = choisir(exclu);
+		if (!pendingQueries.register(e, upstream)) return false;
+		PacketSink sink = upstreamSink != null ? upstreamSink : e.getSink().isDatagram() ? e.getSink() : fluxSink;
+		if (sink == null) throw new IOException("Aucun socket UDP pour rediriger la requete TCP de " + e.getClient());
+		sink.send(e.getRequete(), 0, e.getRequete().length, upstream.adresse);
+		return true;
+	}
+
+	/**
+	 * Redemande en TCP, au serveur qui a envoye une reponse tronquee, une requete deja
+	 * retiree de la table. Bloque jusqu'a la reponse ou l'expiration du delai d'attente :
+	 * ne doit pas etre appelee par un worker.
+	 * @param e : la requete du client, avec l'identifiant utilise pour le serveur
+	 * @return la reponse complete, null si son identifiant n'est pas celui de la requete
+	 * @throws IOException si la connexion ou l'echange echoue
+	 */
+	public byte[] demanderTcp(PendingQueryTable.Entry e) throws IOException {
+		byte[] requete = e.getRequete();
+		Socket socket = new Socket();
+		try {
+			socket.connect(e.getUpstream().adresse, (int) timeoutMillis);
+			socket.setSoTimeout((int) timeoutMillis);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeShort(requete.length);
+			out.write(requete);
+			out.flush();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] reponse = new byte[in.readUnsignedShort()];
+			in.readFully(reponse);
+			if (reponse.length < DNSMessage.HEADER_SIZE || reponse[0] != requete[0] || reponse[1] != requete[1]) return null;
+			return reponse;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Compte l'expiration d'une requete contre son serveur
+	 */
+	private void echec(Upstream u) {
+		synchronized (u) {
+			u.expirations++;
+			u.srtt += (timeoutMillis * 1000 - u.srtt) >> 3;
+			if (++u.echecs >= MAX_ECHECS) {
+				int n = Math.min(u.echecs - MAX_ECHECS, 5);
+				u.horsServiceJusqua = System.currentTimeMillis() + Math.min(BACKOFF_MS << n, MAX_BACKOFF_MS);
+				Log.warn("Serveur " + u + " sans reponse (" + u.echecs + " fois), mis a l'ecart");
+			}
+		}
+	}
+
+	/**
+	 * Reprend les requetes expirees jusqu'a l'arret
+	 */
+	public void run() {
+		while (!stop) {
+			try {
+				Thread.sleep(TICK_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			List<PendingQueryTable.Entry> expirees = pendingQueries.expirer();
+			for (PendingQueryTable.Entry e : expirees) {
+				Upstream precedent = e.getUpstream();
+				echec(precedent);
+				try {
+					if (e.getEssais() <= retries && envoyer(e, precedent)) {
+						if (Log.isDebug()) Log.debug("No answer from " + precedent + " for " + e.getName()
+								+ ", retry " + (e.getEssais() - 1) + " on " + e.getUpstream());
+					} else {
+						if (Log.isDebug()) Log.debug("No answer for " + e.getName() + ", SERVFAIL sent to " + e.getClient());
+						repondreEchec(e);
+					}
+				} catch (IOException ex) {
+					Log.error("Nouvel essai pour " + e.getName() + " impossible", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Repond SERVFAIL au client et a ceux qui attendaient la meme reponse. Peut etre appelee
+	 * par plusieurs threads en parallele (ce thread, ceux des echanges TCP).
+	 * @param e : la requete du client, retiree de la table
+	 * @throws IOException si l'envoi echoue
+	 */
+	public void repondreEchec(PendingQueryTable.Entry e) throws IOException {
+		DNSMessage message = new DNSMessage(); //propre a cet appel
+		repondreEchecClient(e, message);
+		if (e.getAttentes() != null) {
+			for (PendingQueryTable.Entry attente : e.getAttentes()) repondreEchecClient(attente, message);
+		}
+	}
+
+	/**
+	 * Repond SERVFAIL a un client a partir de la copie de sa requete
+	 * @param message : lecteur de la requete, propre a l'appelant
+	 */
+	private void repondreEchecClient(PendingQueryTable.Entry e, DNSMessage message) throws IOException {
+		byte[] requete = e.getRequete();
+		if (!message.wrap(requete, requete.length)) return;
+		int length = message.getQuestionEnd();
+		byte[] reponse = new byte[length];
+		System.arraycopy(requete, 0, reponse, 0, length);
+		reponse[0] = (byte) (e.getClientId() >> 8);
+		reponse[1] = (byte) e.getClientId();
+		reponse[2] = (byte) (0x80 | (requete[2] & 0x79)); //QR, opcode et RD repris
+		reponse[3] = (byte) (0x80 | DNSMessage.RCODE_SERVFAIL);
+		reponse[4] = 0;
+		reponse[5] = 1;
+		for (int i = 6; i < DNSMessage.HEADER_SIZE; i++) reponse[i] = 0;
+		e.getSink().send(reponse, 0, length, e.getClient());
+		Metrics m = metrics;
+		if (m != null) {
+			m.reponse(reponse);
+			m.getLatenceRedirection().enregistrerDepuis(e.getDebut());
+		}
+	}
+
+	/**
+	 * Arrete la reprise des requetes expirees
+	 */
+	public void arreter() {
+		stop = true;
+		interrupt();
+	}
+}
@@ -0,0 +1,116 @@
+package com.ets.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogramme de durees, en microsecondes, a cases de largeur croissante (comme HdrHistogram).
+ *
+ * Chaque puissance de 2 est divisee en 4 cases egales : l'erreur relative sur une duree est
+ * donc d'au plus 25%, de 4 microsecondes a 67 secondes, avec 104 compteurs. La case d'une
+ * duree se calcule avec quelques decalages; chaque case est un LongAdder, l'enregistrement
+ * ne prend aucun verrou et plusieurs threads peuvent le faire en parallele.
+ *
+ * L'histogramme est exporte au format texte de Prometheus (type histogram, durees en
+ * secondes), avec une borne "le" par puissance de 2.
+ */
+public class LatencyHistogram {
+	private final static int SOUS_CASES = 4; //cases par puissance de 2 (les decalages supposent 4)
+	private final static int MAX_PUISSANCE = 26; //2^26 us = 67 s, les durees plus longues vont dans la derniere case
+	private final static int NB_CASES = SOUS_CASES * MAX_PUISSANCE;
+
+	private final LongAdder[] cases = new LongAdder[NB_CASES];
+	private final LongAdder somme = new LongAdder(); //microsecondes
+
+	public LatencyHistogram() {
+		for (int i = 0; i < NB_CASES; i++) cases[i] = new LongAdder();
+	}
+
+	/**
+	 * @param micros : duree a enregistrer, en microsecondes
+	 */
+	public void enregistrer(long micros) {
+		if (micros < 0) micros = 0;
+		cases[indice(micros)].increment();
+		somme.add(micros);
+	}
+
+	/**
+	 * Enregistre la duree ecoulee depuis un instant
+	 * @param debut : instant de depart (System.nanoTime)
+	 */
+	public void enregistrerDepuis(long debut) {
+		enregistrer((System.nanoTime() - debut) / 1000);
+	}
+
+	/**
+	 * @return le nombre de durees enregistrees
+	 */
+	public long getCount() {
+		long n = 0;
+		for (LongAdder c : cases) n += c.sum();
+		return n;
+	}
+
+	/**
+	 * @param q : rang voulu, entre 0 et 1 (0.99 pour le 99e centile)
+	 * @return la borne superieure, en microsecondes, de la case ou se trouve ce rang
+	 * (a 25% pres), 0 si aucune duree n'est enregistree
+	 */
+	public long quantile(double q) {
+		long[] n = new long[NB_CASES];
+		long total = 0;
+		for (int i = 0; i < NB_CASES; i++) total += n[i] = cases[i].sum();
+		if (total == 0) return 0;
+		long rang = Math.max(1, (long) Math.ceil(q * total));
+		long cumul = 0;
+		for (int i = 0; i < NB_CASES; i++) {
+			cumul += n[i];
+			if (cumul >= rang) return borne(i);
+		}
+		return borne(NB_CASES - 1);
+	}
+
+	/**
+	 * @return la case d'une duree : les 4 premieres sont de largeur 1, puis les cases de la
+	 * puissance p (2^p <= v < 2^(p+1)) commencent a 4 * (p - 1)
+	 */
+	static int indice(long v) {
+		if (v < SOUS_CASES) return (int) v;
+		int p = 63 - Long.numberOfLeadingZeros(v);
+		int i = SOUS_CASES * (p - 1) + (int) ((v >> (p - 2)) & (SOUS_CASES - 1));
+		return Math.min(i, NB_CASES - 1);
+	}
+
+	/**
+	 * @return la borne superieure (exclue) de la case i, en microsecondes
+	 */
+	static long borne(int i) {
+		if (i < SOUS_CASES) return i + 1;
+		int p = i / SOUS_CASES + 1;
+		return (long) (SOUS_CASES + 1 + i % SOUS_CASES) << (p - 2);
+	}
+
+	/**
+	 * Ecrit les lignes _bucket, _sum et _count de l'histogramme (sans HELP ni TYPE, communs
+	 * a tous les histogrammes d'un meme nom)
+	 * @param out : destination
+	 * @param nom : nom de la metrique
+	 * @param etiquettes : etiquettes Prometheus (ex "server=\"8.8.8.8:53\""), vide si aucune
+	 */
+	public void ecrire(StringBuilder out, String nom, String etiquettes) {
+		String prefixe = etiquettes.isEmpty() ? "{" : "{" + etiquettes + ",";
+		long cumul = 0;
+		for (int i = 0; i < NB_CASES; i++) {
+			cumul += cases[i].sum();
+			//une borne par puissance de 2, la derniere case n'a pas de borne superieure
+			if (i % SOUS_CASES == SOUS_CASES - 1 && i < NB_CASES - 1) {
+				out.append(nom).append("_bucket").append(prefixe).append("le=\"")
+						.append(borne(i) / 1e6).append("\"} ").append(cumul).append('\n');
+			}
+		}
+		out.append(nom).append("_bucket").append(prefixe).append("le=\"+Inf\"} ").append(cumul).append('\n');
+		String fin = etiquettes.isEmpty() ? " " : "{" + etiquettes + "} ";
+		out.append(nom).append("_sum").append(fin).append(somme.sum() / 1e6).append('\n');
+		out.append(nom).append("_count").append(fin).append(cumul).append('\n');
+	}
+}
@@ -0,0 +1,222 @@
+package com.ets.server;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal du serveur, ecrit en arriere-plan.
+ *
+ * Un message est depose dans un tampon circulaire sans verrou (une reservation par
+ * compareAndSet) et un thread a part l'ecrit sur la console, par lots : le thread qui
+ * traite une requete n'attend jamais l'affichage. Si le tampon est plein, le message est
+ * perdu et compte (getPerdus) plutot que de ralentir le traitement.
+ *
+ * Les messages ont un niveau (DEBUG, INFO, WARN, ERROR); ceux sous le niveau choisi sont
+ * ignores. Le detail de chaque requete est au niveau DEBUG et le code qui le produit est
+ * garde par tracer() : au niveau INFO, aucune chaine n'est construite pour une requete.
+ * En DEBUG, tracer() peut ne retenir qu'une requete sur N (echantillonnage) pour suivre
+ * un serveur charge.
+ *
+ * Chaque ligne porte l'heure (UTC), le niveau et le thread : "2016-10-18T14:03:12.345Z
+ * INFO [dns-worker-1] message". Les niveaux WARN et ERROR sont ecrits sur la sortie
+ * d'erreur.
+ */
+public class Log {
+	public final static int DEBUG = 0;
+	public final static int INFO = 1;
+	public final static int WARN = 2;
+	public final static int ERROR = 3;
+	public final static int OFF = 4;
+	private final static String[] NOMS = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+	private final static int CAPACITE = 8192; //messages en attente d'ecriture (puissance de 2)
+	private final static int MASQUE = CAPACITE - 1;
+	private final static long PAUSE_NS = 1000000; //attente du thread d'ecriture quand le tampon est vide
+
+	/** Un message en attente d'ecriture */
+	private static class Evenement {
+		final long instant = System.currentTimeMillis();
+		final int niveau;
+		final String thread = Thread.currentThread().getName();
+		final String message;
+		final Throwable erreur;
+
+		Evenement(int niveau, String message, Throwable erreur) {
+			this.niveau = niveau;
+			this.message = message;
+			this.erreur = erreur;
+		}
+	}
+
+	private static volatile int niveau = INFO;
+	private static volatile int echantillon = 1; //une requete tracee sur echantillon
+	private static final AtomicReferenceArray<Evenement> tampon = new AtomicReferenceArray<Evenement>(CAPACITE);
+	private static final AtomicLong ecriture = new AtomicLong(); //prochaine case reservee par un producteur
+	private static volatile long lecture = 0; //prochaine case lue, avancee par le thread d'ecriture seulement
+	private static volatile long affiches = 0; //messages lus et deja affiches
+	private static final LongAdder perdus = new LongAdder();
+	private static final Thread ecrivain = new Thread("dns-log") {
+		public void run() {
+			ecrire();
+		}
+	};
+
+	static {
+		ecrivain.setDaemon(true);
+		ecrivain.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				vider(500);
+			}
+		});
+	}
+
+	private Log(){
+	}
+
+	/**
+	 * @param n : niveau minimal des messages ecrits (DEBUG, INFO, WARN, ERROR ou OFF)
+	 */
+	public static void setNiveau(int n) {
+		if (n < DEBUG || n > OFF) throw new IllegalArgumentException("Niveau invalide : " + n);
+		niveau = n;
+	}
+
+	/**
+	 * @param nom : debug, info, warn, error ou off (la casse est ignoree)
+	 * @return le niveau correspondant
+	 * @throws IllegalArgumentException si le nom est inconnu
+	 */
+	public static int parseNiveau(String nom) {
+		for (int i = 0; i < NOMS.length; i++) {
+			if (NOMS[i].equalsIgnoreCase(nom)) return i;
+		}
+		if ("off".equalsIgnoreCase(nom)) return OFF;
+		throw new IllegalArgumentException("Niveau de journal inconnu : " + nom);
+	}
+
+	/**
+	 * @param n : en DEBUG, une requete sur n est tracee (1 pour toutes)
+	 */
+	public static void setEchantillon(int n) {
+		if (n < 1) throw new IllegalArgumentException("L'echantillon doit etre d'au moins 1");
+		echantillon = n;
+	}
+
+	/**
+	 * @return true si les messages DEBUG sont ecrits
+	 */
+	public static boolean isDebug() {
+		return niveau <= DEBUG;
+	}
+
+	/**
+	 * Decide si le detail d'une requete est journalise. A appeler une fois par requete,
+	 * avant de construire le moindre message.
+	 * @return true si le niveau est DEBUG et que la requete fait partie de l'echantillon
+	 */
+	public static boolean tracer() {
+		if (niveau > DEBUG) return false;
+		int n = echantillon;
+		return n == 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+	}
+
+	public static void debug(String message) {
+		if (niveau <= DEBUG) deposer(DEBUG, message, null);
+	}
+
+	public static void info(String message) {
+		if (niveau <= INFO) deposer(INFO, message, null);
+	}
+
+	public static void warn(String message) {
+		if (niveau <= WARN) deposer(WARN, message, null);
+	}
+
+	public static void error(String message, Throwable erreur) {
+		if (niveau <= ERROR) deposer(ERROR, message, erreur);
+	}
+
+	/**
+	 * @return le nombre de messages perdus parce que le tampon etait plein
+	 */
+	public static long getPerdus() {
+		return perdus.sum();
+	}
+
+	/**
+	 * Reserve une case du tampon et y depose le message
+	 */
+	private static void deposer(int n, String message, Throwable erreur) {
+		long seq;
+		do {
+			seq = ecriture.get();
+			if (seq - lecture >= CAPACITE) {
+				perdus.increment();
+				return;
+			}
+		} while (!ecriture.compareAndSet(seq, seq + 1));
+		tampon.set((int) (seq & MASQUE), new Evenement(n, message, erreur));
+	}
+
+	/**
+	 * Attend que les messages deja deposes soient ecrits
+	 * @param timeoutMs : attente maximale
+	 */
+	public static void vider(long timeoutMs) {
+		long fin = System.currentTimeMillis() + timeoutMs;
+		long cible = ecriture.get();
+		while (affiches < cible && System.currentTimeMillis() < fin) {
+			LockSupport.parkNanos(PAUSE_NS);
+		}
+	}
+
+	/**
+	 * Boucle du thread d'ecriture : lit les messages dans l'ordre de leur reservation et
+	 * les ecrit par lots
+	 */
+	private static void ecrire() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder sortie = new StringBuilder(8192), erreurs = new StringBuilder(1024);
+		while (true) {
+			long seq = lecture;
+			Evenement e = tampon.get((int) (seq & MASQUE));
+			if (e == null) {
+				//vide, ou case reservee dont le message n'est pas encore depose
+				afficher(sortie, System.out);
+				afficher(erreurs, System.err);
+				affiches = seq;
+				LockSupport.parkNanos(PAUSE_NS);
+				continue;
+			}
+			tampon.set((int) (seq & MASQUE), null);
+			lecture = seq + 1;
+
+			StringBuilder sb = e.niveau >= WARN ? erreurs : sortie;
+			sb.append(format.format(new Date(e.instant))).append(' ').append(NOMS[e.niveau])
+					.append(" [").append(e.thread).append("] ").append(e.message).append('\n');
+			if (e.erreur != null) {
+				afficher(sortie, System.out);
+				afficher(erreurs, System.err);
+				e.erreur.printStackTrace(System.err);
+			}
+			if (sortie.length() > 8192) afficher(sortie, System.out);
+			if (erreurs.length() > 8192) afficher(erreurs, System.err);
+		}
+	}
+
+	private static void afficher(StringBuilder sb, PrintStream out) {
+		if (sb.length() == 0) return;
+		out.print(sb);
+		out.flush();
+		sb.setLength(0);
+	}
+}
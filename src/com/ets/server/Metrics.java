@@ -0,0 +1,158 @@
+package com.ets.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compteurs du traitement des requetes, exportes par le MetricsServer.
+ *
+ * Tous les compteurs sont des LongAdder : chaque thread incremente sa propre cellule, sans
+ * verrou ni contention sur le chemin d'une requete; les totaux ne sont calcules qu'a la
+ * lecture. Sont comptes :
+ * <ul>
+ * <li>les questions recues, par type;</li>
+ * <li>les reponses envoyees, par RCODE;</li>
+ * <li>la source des reponses : table, zone (reponse negative), cache ou redirection;</li>
+ * <li>les paquets abandonnes, par raison;</li>
+ * <li>la duree du traitement des reponses locales et celle des reponses redirigees (de la
+ * reception de la question a l'envoi de la reponse).</li>
+ * </ul>
+ * Les statistiques du cache, des requetes en attente et des serveurs de redirection sont
+ * lues directement dans ces objets par le MetricsServer.
+ */
+public class Metrics {
+	public final static int SOURCE_TABLE = 0;
+	public final static int SOURCE_ZONE = 1;
+	public final static int SOURCE_CACHE = 2;
+	public final static int SOURCE_REDIRECTION = 3;
+	private final static String[] SOURCES = { "table", "zone", "cache", "forwarded" };
+
+	public final static int ABANDON_MALFORME = 0; //paquet illisible
+	public final static int ABANDON_INATTENDU = 1; //question sur un port de redirection, reponse que personne n'attend
+	public final static int ABANDON_TROP_GRAND = 2; //reponse qui ne tient pas dans la limite du client
+	public final static int ABANDON_ATTENTE_PLEINE = 3; //trop de requetes redirigees en attente
+	public final static int ABANDON_FILE_PLEINE = 4; //file des workers pleine
+	public final static int ABANDON_ENVOI = 5; //tampon d'envoi du systeme plein (NIO)
+	private final static String[] RAISONS = { "malformed", "unexpected", "too_large", "pending_full",
+			"queue_full", "send_buffer_full" };
+
+	private final static String[] RCODES = { "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED" };
+
+	private final LongAdder[] requetes = compteurs(RecordData.TYPES.length + 1); //le dernier : autres types
+	private final LongAdder[] rcodes = compteurs(16);
+	private final LongAdder[] sources = compteurs(SOURCES.length);
+	private final LongAdder[] abandons = compteurs(RAISONS.length);
+	private final LatencyHistogram latenceLocale = new LatencyHistogram();
+	private final LatencyHistogram latenceRedirection = new LatencyHistogram();
+
+	private static LongAdder[] compteurs(int n) {
+		LongAdder[] c = new LongAdder[n];
+		for (int i = 0; i < n; i++) c[i] = new LongAdder();
+		return c;
+	}
+
+	/**
+	 * Compte une question recue
+	 * @param qtype : son type
+	 */
+	public void requete(int qtype) {
+		int i = 0;
+		while (i < RecordData.TYPES.length && RecordData.TYPES[i] != qtype) i++;
+		requetes[i].increment();
+	}
+
+	/**
+	 * Compte une reponse envoyee
+	 * @param reponse : la reponse, son RCODE est lu dans l'en-tete
+	 */
+	public void reponse(byte[] reponse) {
+		rcodes[reponse[3] & 0x0F].increment();
+	}
+
+	/**
+	 * @param source : SOURCE_TABLE, SOURCE_ZONE, SOURCE_CACHE ou SOURCE_REDIRECTION
+	 */
+	public void source(int source) {
+		sources[source].increment();
+	}
+
+	/**
+	 * @param source : SOURCE_TABLE, SOURCE_ZONE, SOURCE_CACHE ou SOURCE_REDIRECTION
+	 * @return son nom dans les statistiques (table, zone, cache ou forwarded)
+	 */
+	public static String nomSource(int source) {
+		return SOURCES[source];
+	}
+
+	/**
+	 * @param raison : une des constantes ABANDON_*
+	 */
+	public void abandon(int raison) {
+		abandons[raison].increment();
+	}
+
+	/**
+	 * @param raison : une des constantes ABANDON_*
+	 * @return le nombre de paquets abandonnes pour cette raison
+	 */
+	public long getAbandons(int raison) {
+		return abandons[raison].sum();
+	}
+
+	/**
+	 * @return la duree des reponses tirees de la table, d'une zone ou du cache
+	 */
+	public LatencyHistogram getLatenceLocale() {
+		return latenceLocale;
+	}
+
+	/**
+	 * @return la duree des reponses redirigees, vue du client
+	 */
+	public LatencyHistogram getLatenceRedirection() {
+		return latenceRedirection;
+	}
+
+	/**
+	 * Ecrit les compteurs au format texte de Prometheus
+	 * @param out : destination
+	 */
+	public void ecrire(StringBuilder out) {
+		entete(out, "dns_queries_total", "counter", "Questions received, by type");
+		for (int i = 0; i < requetes.length; i++) {
+			String type = i < RecordData.TYPES.length ? RecordData.typeName(RecordData.TYPES[i]) : "other";
+			ligne(out, "dns_queries_total", "type", type, requetes[i].sum());
+		}
+		entete(out, "dns_responses_total", "counter", "Responses sent, by rcode");
+		for (int i = 0; i < rcodes.length; i++) {
+			long n = rcodes[i].sum();
+			if (n > 0 || i < RCODES.length) ligne(out, "dns_responses_total", "rcode", i < RCODES.length ? RCODES[i] : "RCODE" + i, n);
+		}
+		entete(out, "dns_answers_total", "counter", "Questions answered locally or forwarded, by source");
+		for (int i = 0; i < sources.length; i++) {
+			ligne(out, "dns_answers_total", "source", SOURCES[i], sources[i].sum());
+		}
+		entete(out, "dns_dropped_total", "counter", "Packets dropped, by reason");
+		for (int i = 0; i < abandons.length; i++) {
+			ligne(out, "dns_dropped_total", "reason", RAISONS[i], abandons[i].sum());
+		}
+		entete(out, "dns_local_latency_seconds", "histogram", "Time to answer from the table, a zone or the cache");
+		latenceLocale.ecrire(out, "dns_local_latency_seconds", "");
+		entete(out, "dns_forwarded_latency_seconds", "histogram", "Time to answer a forwarded question, as seen by the client");
+		latenceRedirection.ecrire(out, "dns_forwarded_latency_seconds", "");
+	}
+
+	/**
+	 * Ecrit les lignes HELP et TYPE d'une metrique
+	 */
+	static void entete(StringBuilder out, String nom, String type, String aide) {
+		out.append("# HELP ").append(nom).append(' ').append(aide).append('\n');
+		out.append("# TYPE ").append(nom).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Ecrit une valeur avec une etiquette
+	 */
+	static void ligne(StringBuilder out, String nom, String etiquette, String valeur, Object n) {
+		out.append(nom).append('{').append(etiquette).append("=\"").append(valeur).append("\"} ").append(n).append('\n');
+	}
+}
@@ -0,0 +1,121 @@
+package com.ets.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Point d'acces HTTP aux statistiques du serveur, au format texte de Prometheus
+ * (GET /metrics).
+ *
+ * Le serveur n'ecoute que sur l'adresse locale (127.0.0.1) : les statistiques sont lues
+ * par un agent installe sur la meme machine. Chaque lecture additionne les compteurs du
+ * Metrics et interroge le cache, la table des requetes en attente et les serveurs de
+ * redirection; rien n'est calcule entre deux lectures.
+ */
+public class MetricsServer implements HttpHandler {
+	private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Metrics metrics;
+	private final Forwarder forwarder;
+	private final ResponseCache responseCache; //null si le cache est desactive
+	private final HttpServer serveur;
+
+	/**
+	 * Constructeur, ouvre le port
+	 * @param port : port HTTP local
+	 * @param metrics : compteurs du QueryProcessor
+	 * @param forwarder : redirection, pour les statistiques des serveurs et des requetes en attente
+	 * @param responseCache : cache des reponses, null s'il n'y en a pas
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	public MetricsServer(int port, Metrics metrics, Forwarder forwarder, ResponseCache responseCache) throws IOException {
+		this.metrics = metrics;
+		this.forwarder = forwarder;
+		this.responseCache = responseCache;
+		this.serveur = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.serveur.createContext("/metrics", this);
+	}
+
+	/**
+	 * Demarre le serveur HTTP (sur son propre thread)
+	 */
+	public void start() {
+		serveur.start();
+		Log.info("Statistiques sur http://" + serveur.getAddress().getAddress().getHostAddress()
+				+ ":" + serveur.getAddress().getPort() + "/metrics");
+	}
+
+	/**
+	 * Arrete le serveur HTTP
+	 */
+	public void arreter() {
+		serveur.stop(0);
+	}
+
+	public void handle(HttpExchange echange) throws IOException {
+		try {
+			if (!"GET".equals(echange.getRequestMethod())) {
+				echange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] corps = exporter().getBytes(StandardCharsets.UTF_8);
+			echange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			echange.sendResponseHeaders(200, corps.length);
+			OutputStream out = echange.getResponseBody();
+			out.write(corps);
+			out.close();
+		} finally {
+			echange.close();
+		}
+	}
+
+	/**
+	 * @return toutes les statistiques au format texte de Prometheus
+	 */
+	public String exporter() {
+		StringBuilder out = new StringBuilder(8192);
+		metrics.ecrire(out);
+
+		if (responseCache != null) {
+			Metrics.entete(out, "dns_cache_hits_total", "counter", "Questions answered by the response cache");
+			out.append("dns_cache_hits_total ").append(responseCache.getHits()).append('\n');
+			Metrics.entete(out, "dns_cache_misses_total", "counter", "Questions not found or expired in the response cache");
+			out.append("dns_cache_misses_total ").append(responseCache.getMisses()).append('\n');
+			Metrics.entete(out, "dns_cache_entries", "gauge", "Responses held in the cache");
+			out.append("dns_cache_entries ").append(responseCache.size()).append('\n');
+		}
+
+		PendingQueryTable attente = forwarder.getPendingQueries();
+		Metrics.entete(out, "dns_pending_queries", "gauge", "Forwarded questions waiting for an answer");
+		out.append("dns_pending_queries ").append(attente.size()).append('\n');
+		Metrics.entete(out, "dns_pending_coalesced_total", "counter", "Questions joined to an identical pending question");
+		out.append("dns_pending_coalesced_total ").append(attente.getRegroupees()).append('\n');
+		Metrics.entete(out, "dns_pending_expired_total", "counter", "Forwarded questions that timed out");
+		out.append("dns_pending_expired_total ").append(attente.getExpired()).append('\n');
+
+		Forwarder.Upstream[] upstreams = forwarder.getUpstreams();
+		Metrics.entete(out, "dns_upstream_queries_total", "counter", "Questions sent to each upstream server");
+		for (Forwarder.Upstream u : upstreams) Metrics.ligne(out, "dns_upstream_queries_total", "server", u.toString(), u.getEnvois());
+		Metrics.entete(out, "dns_upstream_responses_total", "counter", "Answers received from each upstream server");
+		for (Forwarder.Upstream u : upstreams) Metrics.ligne(out, "dns_upstream_responses_total", "server", u.toString(), u.getReponses());
+		Metrics.entete(out, "dns_upstream_timeouts_total", "counter", "Questions left unanswered by each upstream server");
+		for (Forwarder.Upstream u : upstreams) Metrics.ligne(out, "dns_upstream_timeouts_total", "server", u.toString(), u.getExpirations());
+		Metrics.entete(out, "dns_upstream_srtt_seconds", "gauge", "Smoothed round-trip time of each upstream server");
+		for (Forwarder.Upstream u : upstreams) Metrics.ligne(out, "dns_upstream_srtt_seconds", "server", u.toString(), u.getSrtt() / 1e6);
+		Metrics.entete(out, "dns_upstream_up", "gauge", "1 if the upstream server is in use, 0 if it is set aside");
+		for (Forwarder.Upstream u : upstreams) Metrics.ligne(out, "dns_upstream_up", "server", u.toString(), u.isDisponible() ? 1 : 0);
+		Metrics.entete(out, "dns_upstream_rtt_seconds", "histogram", "Round-trip time of the answers of each upstream server");
+		for (Forwarder.Upstream u : upstreams) u.getRtt().ecrire(out, "dns_upstream_rtt_seconds", "server=\"" + u + "\"");
+
+		Metrics.entete(out, "dns_log_dropped_total", "counter", "Log messages lost because the log buffer was full");
+		out.append("dns_log_dropped_total ").append(Log.getPerdus()).append('\n');
+		return out.toString();
+	}
+}
@@ -0,0 +1,251 @@
+package com.ets.server;
+
+/**
+ * Index de noms de domaine organise par etiquettes, de la derniere a la premiere
+ * ("www.exemple.ca" est range sous ca, puis exemple, puis www).
+ *
+ * Chaque noeud correspond a une etiquette, gardee en minuscules sous forme d'octets; ses
+ * enfants sont dans une petite table de hachage. Une recherche lit le nom demande sur
+ * place, de la fin vers le debut, sans creer de chaine : son cout depend du nombre
+ * d'etiquettes du nom, pas du nombre de noms de l'index. La casse est ignoree.
+ *
+ * Trois recherches sont possibles :
+ * <ul>
+ * <li>exacte : get();</li>
+ * <li>avec joker : chercher(), qui a defaut du nom lui-meme retourne la valeur de
+ * "*.parent" ou parent est le plus long suffixe present dans l'index (RFC 4592);</li>
+ * <li>par suffixe : plusLongSuffixe(), la valeur du plus long suffixe du nom qui en a une
+ * (par exemple la zone qui contient un nom).</li>
+ * </ul>
+ *
+ * Les ajouts sont synchronises; les recherches ne prennent aucun verrou. Un enfant est
+ * ajoute dans une case vide de la table de son parent (ses champs sont final) et une table
+ * agrandie n'est publiee qu'une fois remplie : un lecteur voit donc toujours un index coherent.
+ * Il n'y a pas de suppression.
+ */
+public class NameIndex<V> {
+	private final static int MAX_ETIQUETTES = 128; //un nom de 255 octets a au plus 127 etiquettes
+	private final static int HASH_JOKER = hash("*", 0, 1);
+
+	/**
+	 * Recoit chaque nom de l'index et sa valeur
+	 */
+	public interface Visiteur<V> {
+		void visiter(String nom, V valeur);
+	}
+
+	private static class Noeud<V> {
+		final byte[] etiquette; //en minuscules
+		final int hash;
+		volatile Noeud<V>[] enfants = null; //table de hachage, sondage lineaire
+		int nbEnfants = 0; //modifie sous le verrou de l'index
+		volatile V valeur = null;
+
+		Noeud(byte[] etiquette, int hash) {
+			this.etiquette = etiquette;
+			this.hash = hash;
+		}
+
+		/**
+		 * @return l'enfant dont l'etiquette est nom[debut..fin[, null s'il est absent
+		 */
+		Noeud<V> enfant(String nom, int debut, int fin, int hash) {
+			Noeud<V>[] table = enfants;
+			if (table == null) return null;
+			int masque = table.length - 1;
+			for (int i = hash & masque; ; i = (i + 1) & masque) {
+				Noeud<V> n = table[i];
+				if (n == null) return null;
+				if (n.hash == hash && memeEtiquette(n.etiquette, nom, debut, fin)) return n;
+			}
+		}
+	}
+
+	private final Noeud<V> racine = new Noeud<V>(new byte[0], 0);
+	private int size = 0;
+
+	/**
+	 * @return le nombre de noms qui ont une valeur
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Associe une valeur a un nom (la precedente est remplacee)
+	 * @param nom : nom de domaine, le point final est facultatif
+	 * @param valeur : valeur, non null
+	 */
+	public synchronized void put(String nom, V valeur) {
+		if (valeur == null) throw new IllegalArgumentException("valeur null");
+		Noeud<V> n = racine;
+		int fin = finNom(nom);
+		while (fin > 0) {
+			int debut = nom.lastIndexOf('.', fin - 1) + 1;
+			int hash = hash(nom, debut, fin);
+			Noeud<V> enfant = n.enfant(nom, debut, fin, hash);
+			if (enfant == null) enfant = ajouterEnfant(n, nom, debut, fin, hash);
+			n = enfant;
+			fin = debut - 1;
+		}
+		if (n.valeur == null) size++;
+		n.valeur = valeur;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Noeud<V> ajouterEnfant(Noeud<V> parent, String nom, int debut, int fin, int hash) {
+		byte[] etiquette = new byte[fin - debut];
+		for (int i = debut; i < fin; i++) etiquette[i - debut] = (byte) minuscule(nom.charAt(i));
+		Noeud<V> enfant = new Noeud<V>(etiquette, hash);
+		Noeud<V>[] table = parent.enfants;
+		if (table == null || 2 * (parent.nbEnfants + 1) > table.length) {
+			//nouvelle table remplie avant d'etre publiee
+			Noeud<V>[] nouvelle = new Noeud[table == null ? 2 : 2 * table.length];
+			if (table != null) {
+				for (Noeud<V> n : table) {
+					if (n != null) placer(nouvelle, n);
+				}
+			}
+			placer(nouvelle, enfant);
+			parent.enfants = nouvelle;
+		} else {
+			placer(table, enfant);
+		}
+		parent.nbEnfants++;
+		return enfant;
+	}
+
+	private static <V> void placer(Noeud<V>[] table, Noeud<V> n) {
+		int masque = table.length - 1;
+		int i = n.hash & masque;
+		while (table[i] != null) i = (i + 1) & masque;
+		table[i] = n;
+	}
+
+	/**
+	 * Recherche exacte
+	 * @param nom : nom de domaine, la casse est ignoree et le point final facultatif
+	 * @return la valeur du nom, null s'il n'en a pas
+	 */
+	public V get(String nom) {
+		Noeud<V> n = descendre(nom, false);
+		return n == null ? null : n.valeur;
+	}
+
+	/**
+	 * @param nom : nom de domaine, la casse est ignoree et le point final facultatif
+	 * @return true si le nom est dans l'index, avec une valeur ou comme parent d'autres noms
+	 */
+	public boolean contient(String nom) {
+		return descendre(nom, false) != null;
+	}
+
+	/**
+	 * Recherche avec joker : la valeur du nom s'il est dans l'index, sinon celle du joker
+	 * "*" sous son plus proche parent present (closest encloser, RFC 4592 3.3.1). Un nom
+	 * present sans valeur (parent d'autres noms) n'est pas couvert par un joker.
+	 * @param nom : nom de domaine, la casse est ignoree et le point final facultatif
+	 * @return la valeur trouvee, null s'il n'y en a pas
+	 */
+	public V chercher(String nom) {
+		Noeud<V> n = descendre(nom, true);
+		return n == null ? null : n.valeur;
+	}
+
+	/**
+	 * Recherche par suffixe
+	 * @param nom : nom de domaine, la casse est ignoree et le point final facultatif
+	 * @return la valeur du plus long suffixe du nom (le nom lui-meme compris) qui en a une,
+	 * null s'il n'y en a pas
+	 */
+	public V plusLongSuffixe(String nom) {
+		Noeud<V> n = racine;
+		V trouvee = n.valeur;
+		int fin = finNom(nom);
+		while (fin > 0) {
+			int debut = nom.lastIndexOf('.', fin - 1) + 1;
+			n = n.enfant(nom, debut, fin, hash(nom, debut, fin));
+			if (n == null) break;
+			V v = n.valeur;
+			if (v != null) trouvee = v;
+			fin = debut - 1;
+		}
+		return trouvee;
+	}
+
+	/**
+	 * @param joker : true pour retourner le joker du plus proche parent si le nom est absent
+	 * @return le noeud du nom (ou du joker), null s'il est absent
+	 */
+	private Noeud<V> descendre(String nom, boolean joker) {
+		Noeud<V> n = racine;
+		int fin = finNom(nom);
+		while (fin > 0) {
+			int debut = nom.lastIndexOf('.', fin - 1) + 1;
+			Noeud<V> enfant = n.enfant(nom, debut, fin, hash(nom, debut, fin));
+			if (enfant == null) return joker ? n.enfant("*", 0, 1, HASH_JOKER) : null;
+			n = enfant;
+			fin = debut - 1;
+		}
+		return n;
+	}
+
+	/**
+	 * Parcourt les noms qui ont une valeur
+	 * @param visiteur : recoit chaque nom (en minuscules, sans point final) et sa valeur
+	 */
+	public void parcourir(Visiteur<V> visiteur) {
+		parcourir(racine, new byte[MAX_ETIQUETTES][], 0, visiteur);
+	}
+
+	private void parcourir(Noeud<V> n, byte[][] chemin, int profondeur, Visiteur<V> visiteur) {
+		V v = n.valeur;
+		if (v != null) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = profondeur - 1; i >= 0; i--) {
+				if (sb.length() > 0) sb.append('.');
+				for (byte b : chemin[i]) sb.append((char) (b & 0xFF));
+			}
+			visiteur.visiter(sb.toString(), v);
+		}
+		Noeud<V>[] table = n.enfants;
+		if (table == null || profondeur == chemin.length) return;
+		for (Noeud<V> enfant : table) {
+			if (enfant == null) continue;
+			chemin[profondeur] = enfant.etiquette;
+			parcourir(enfant, chemin, profondeur + 1, visiteur);
+		}
+	}
+
+	/**
+	 * @return la longueur du nom sans le point final
+	 */
+	private static int finNom(String nom) {
+		int fin = nom.length();
+		return fin > 0 && nom.charAt(fin - 1) == '.' ? fin - 1 : fin;
+	}
+
+	/**
+	 * Hachage FNV-1a de l'etiquette en minuscules
+	 */
+	private static int hash(String nom, int debut, int fin) {
+		int h = 0x811C9DC5;
+		for (int i = debut; i < fin; i++) {
+			h ^= minuscule(nom.charAt(i)) & 0xFF;
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean memeEtiquette(byte[] etiquette, String nom, int debut, int fin) {
+		if (etiquette.length != fin - debut) return false;
+		for (int i = debut; i < fin; i++) {
+			if (etiquette[i - debut] != (byte) minuscule(nom.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static int minuscule(char c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+}
@@ -0,0 +1,165 @@
+package com.ets.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Moteur de reception base sur un DatagramChannel non bloquant et un Selector.
+ *
+ * Une seule boucle d'evenements lit les paquets dans des ByteBuffer directs pris dans
+ * une BufferPool, les copie dans un tableau de travail reutilise et les confie au
+ * QueryProcessor. Les reponses sont copiees dans un tampon de la reserve avant l'envoi.
+ * En regime permanent, la boucle n'alloue donc aucun tampon.
+ */
+public class NioUDPServer implements Runnable, PacketSink {
+	private final static int POOL_SIZE = 64; //tampons gardes en reserve
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final QueryProcessor processor;
+	private final BufferPool pool = new BufferPool(POOL_SIZE, UDPReceiver.BUF_SIZE);
+	private final byte[] scratch = new byte[UDPReceiver.BUF_SIZE]; //message en cours de traitement
+	private long envoisAbandonnes = 0;
+	private volatile boolean stop = false;
+
+	/**
+	 * Constructeur, ouvre le canal sur le port d'ecoute
+	 * @param port : port de reception
+	 * @param processor : traitement des messages recus
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	public NioUDPServer(int port, QueryProcessor processor) throws IOException {
+		this(port, processor, false);
+	}
+
+	/**
+	 * Constructeur, ouvre le canal sur le port d'ecoute
+	 * @param port : port de reception
+	 * @param processor : traitement des messages recus
+	 * @param reusePort : true pour partager le port avec d'autres canaux (SO_REUSEPORT),
+	 * le noyau repartit alors les paquets recus entre les canaux
+	 * @throws IOException si le port ne peut etre ouvert ou si SO_REUSEPORT n'est pas supporte
+	 */
+	public NioUDPServer(int port, QueryProcessor processor, boolean reusePort) throws IOException {
+		this.processor = processor;
+		this.channel = DatagramChannel.open();
+		if (reusePort) {
+			this.channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		this.channel.bind(new InetSocketAddress(port));
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @return true si le systeme permet de partager un port UDP entre plusieurs canaux
+	 */
+	public static boolean isReusePortSupported() {
+		try {
+			DatagramChannel test = DatagramChannel.open();
+			try {
+				return test.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			} finally {
+				test.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Boucle d'evenements : attend que le canal soit lisible puis traite tous les paquets en attente
+	 */
+	public void run() {
+		Log.info("Serveur DNS (NIO) en attente sur le port: " + channel.socket().getLocalPort());
+		try {
+			while (!stop) {
+				selector.select();
+				selector.selectedKeys().clear();
+				recevoirTout();
+			}
+		} catch (IOException e) {
+			Log.error("Probleme a l'execution", e);
+		} finally {
+			fermer();
+		}
+	}
+
+	/**
+	 * Lit les paquets jusqu'a ce que le canal soit vide
+	 */
+	private void recevoirTout() throws IOException {
+		ByteBuffer buffer = pool.acquire();
+		try {
+			while (true) {
+				buffer.clear();
+				SocketAddress source = channel.receive(buffer);
+				if (source == null) return;
+				buffer.flip();
+				int length = buffer.remaining();
+				buffer.get(scratch, 0, length);
+				processor.process(scratch, length, (InetSocketAddress) source, this);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * @return true, les messages sont envoyes en UDP
+	 */
+	public boolean isDatagram() {
+		return true;
+	}
+
+	/**
+	 * Envoie un message sur le canal d'ecoute. Si le tampon d'envoi du systeme
+	 * est plein, le message est abandonne (UDP ne garantit pas la livraison).
+	 */
+	public void send(byte[] data, int offset, int length, InetSocketAddress destination) throws IOException {
+		ByteBuffer buffer = pool.acquire();
+		try {
+			buffer.put(data, offset, length);
+			buffer.flip();
+			if (channel.send(buffer, destination) == 0) {
+				synchronized (this) {
+					envoisAbandonnes++;
+				}
+				processor.getMetrics().abandon(Metrics.ABANDON_ENVOI);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * @return le nombre de messages abandonnes faute de place dans le tampon d'envoi
+	 */
+	public synchronized long getEnvoisAbandonnes() {
+		return envoisAbandonnes;
+	}
+
+	/**
+	 * Demande l'arret de la boucle
+	 */
+	public void arreter() {
+		stop = true;
+		selector.wakeup();
+	}
+
+	private void fermer() {
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			Log.error("Fermeture du canal impossible", e);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.ets.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture des requetes des clients et des reponses envoyees, dans un fichier circulaire
+ * projete en memoire (mmap).
+ *
+ * Un paquet est copie tel quel, avec l'heure et l'adresse du client, directement dans la
+ * projection : aucun appel systeme ni thread intermediaire, le systeme ecrit les pages sur
+ * le disque en arriere-plan. La place est reservee sans verrou (compareAndSet sur la
+ * position d'ecriture), la copie se fait ensuite en parallele. Quand le fichier est plein,
+ * les paquets les plus anciens sont remplaces : le fichier garde toujours les derniers echanges.
+ * Un fichier existant n'est jamais ecrase : il est renomme avec sa date de modification.
+ *
+ * Le fichier est decoupe en blocs; un enregistrement ne chevauche jamais deux blocs, ce qui
+ * permet de relire un fichier qui a deja fait le tour a partir du plus ancien bloc complet.
+ * Chaque enregistrement commence par sa position d'ecriture, ecrite en dernier : a la lecture,
+ * une marque differente de la position attendue signale la fin des enregistrements d'un bloc,
+ * un reste d'un tour precedent ou un enregistrement encore en cours d'ecriture.
+ *
+ * Format (entiers big-endian) :
+ * <pre>
+ * en-tete         : "DCAP" | version (4) | taille d'un bloc (4) | nb blocs (4)
+ *                   | position d'ecriture a la fermeture (8, indicative)
+ * enregistrement  : marque (8, position d'ecriture de l'enregistrement + 1)
+ *                   | longueur totale (4) | heure (8, microsecondes depuis 1970)
+ *                   | sens (1, 0 = requete, 1 = reponse) | transport (1, 0 = UDP, 1 = TCP)
+ *                   | longueur de l'adresse (1, 4 ou 16) | 0 (1) | adresse (16) | port (2)
+ *                   | longueur du message (2) | message
+ * </pre>
+ */
+public class PacketCapture {
+	public final static int SENS_REQUETE = 0;
+	public final static int SENS_REPONSE = 1;
+	public final static int DEFAULT_SIZE_MB = 64;
+
+	private final static int MAGIC = 0x44434150; //"DCAP"
+	private final static int VERSION = 2;
+	private final static int HEADER_SIZE = 24;
+	private final static int POSITION_OFFSET = 16;
+	private final static int BLOC = 1 << 17; //128 Ko, un message TCP (64 Ko) tient toujours dans un bloc
+	private final static int ENTETE_ENREGISTREMENT = 44;
+
+	/**
+	 * Recoit les paquets d'une capture, du plus ancien au plus recent
+	 */
+	public interface Visiteur {
+		/**
+		 * @param heure : microsecondes depuis 1970
+		 * @param sens : SENS_REQUETE ou SENS_REPONSE
+		 * @param tcp : true si le paquet a ete recu ou envoye en TCP
+		 * @param client : adresse et port du client
+		 * @param message : le message DNS (tableau reutilise, a copier pour le garder)
+		 * @param length : sa taille
+		 */
+		void paquet(long heure, int sens, boolean tcp, InetSocketAddress client, byte[] message, int length);
+	}
+
+	private final String filename;
+	private final MappedByteBuffer map;
+	private final int blocs;
+	private final long heureDebut = System.currentTimeMillis() * 1000; //microsecondes
+	private final long nanoDebut = System.nanoTime();
+	private final AtomicLong position = new AtomicLong(); //octets reserves depuis la creation
+
+	private PacketCapture(String filename, MappedByteBuffer map, int blocs) {
+		this.filename = filename;
+		this.map = map;
+		this.blocs = blocs;
+	}
+
+	/**
+	 * Cree un fichier de capture. Un fichier existant (la capture d'un incident par exemple)
+	 * est d'abord renomme en filename.aaaaMMjj-HHmmss, d'apres sa date de modification.
+	 * @param filename : chemin du fichier
+	 * @param tailleMo : taille du fichier en mega-octets (au moins 1)
+	 * @return la capture, prete a recevoir les paquets
+	 * @throws IOException si le fichier ne peut etre cree ou l'ancien renomme
+	 */
+	public static PacketCapture creer(String filename, int tailleMo) throws IOException {
+		if (tailleMo < 1 || tailleMo > 2047) throw new IllegalArgumentException("La taille doit etre entre 1 et 2047 Mo");
+		int blocs = Math.max(2, (int) ((tailleMo * 1048576L) / BLOC));
+		File f = new File(filename);
+		if (f.exists()) {
+			File ancien = new File(filename + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(f.lastModified())));
+			if (ancien.exists() || !f.renameTo(ancien))
+				throw new IOException(filename + " existe deja et ne peut etre renomme en " + ancien.getName());
+			Log.info("Ancienne capture conservee dans " + ancien);
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			//la projection reste valide apres la fermeture du fichier
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) blocs * BLOC);
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putInt(8, BLOC);
+			map.putInt(12, blocs);
+			map.putLong(POSITION_OFFSET, 0);
+			return new PacketCapture(filename, map, blocs);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return file name
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Copie un paquet dans la capture. Peut etre appelee par plusieurs threads en parallele.
+	 * @param sens : SENS_REQUETE ou SENS_REPONSE
+	 * @param tcp : true si le paquet passe par TCP
+	 * @param client : adresse et port du client
+	 * @param data : tampon contenant le message
+	 * @param length : taille du message
+	 */
+	public void ecrire(int sens, boolean tcp, InetSocketAddress client, byte[] data, int length) {
+		long heure = heureDebut + (System.nanoTime() - nanoDebut) / 1000;
+		int taille = ENTETE_ENREGISTREMENT + length;
+		long debut = reserver(taille);
+		if (debut < 0) return;
+
+		int a = adresse(debut);
+		ByteBuffer b = map.duplicate();
+		b.position(a + 8);
+		b.putInt(taille);
+		b.putLong(heure);
+		b.put((byte) sens);
+		b.put((byte) (tcp ? 1 : 0));
+		byte[] adresse = client.getAddress().getAddress();
+		b.put((byte) adresse.length);
+		b.put((byte) 0);
+		b.put(adresse);
+		for (int i = adresse.length; i < 16; i++) b.put((byte) 0);
+		b.putShort((short) client.getPort());
+		b.putShort((short) length);
+		b.put(data, 0, length);
+		b.putLong(a, debut + 1); //en dernier : l'enregistrement est complet
+	}
+
+	/**
+	 * Reserve la place d'un enregistrement, sans verrou. S'il ne tient pas dans la fin du
+	 * bloc courant, l'enregistrement commence le bloc suivant : rien n'est ecrit dans la fin
+	 * sautee, sa marque ne correspond pas a sa position et la lecture passe au bloc suivant.
+	 * @return la position d'ecriture de l'enregistrement, -1 s'il est trop grand
+	 */
+	private long reserver(int taille) {
+		if (taille > BLOC) return -1;
+		while (true) {
+			long p = position.get();
+			int dansBloc = (int) (p % BLOC);
+			long debut = dansBloc + taille > BLOC ? p + BLOC - dansBloc : p;
+			if (position.compareAndSet(p, debut + taille)) return debut;
+		}
+	}
+
+	/**
+	 * @return la position dans la projection d'une position d'ecriture
+	 */
+	private int adresse(long p) {
+		return HEADER_SIZE + (int) ((p / BLOC) % blocs) * BLOC + (int) (p % BLOC);
+	}
+
+	/**
+	 * Envoie les pages modifiees sur le disque
+	 */
+	public void fermer() {
+		map.putLong(POSITION_OFFSET, position.get());
+		map.force();
+	}
+
+	/**
+	 * Lit un fichier de capture, du plus ancien paquet garde au plus recent
+	 * @param filename : fichier cree par une capture
+	 * @param visiteur : recoit chaque paquet
+	 * @return le nombre de paquets lus
+	 * @throws IOException si le fichier ne peut etre lu ou n'est pas une capture
+	 */
+	public static long parcourir(String filename, Visiteur visiteur) throws IOException {
+		MappedByteBuffer map;
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		try {
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+			throw new IOException(filename + " n'est pas une capture (version " + VERSION + ")");
+		int bloc = map.getInt(8), blocs = map.getInt(12);
+		if (bloc <= 0 || blocs <= 0 || HEADER_SIZE + (long) bloc * blocs > map.capacity())
+			throw new IOException(filename + " : en-tete invalide");
+
+		//le bloc courant est le plus recent dont le premier enregistrement est complet
+		//(la position de l'en-tete n'est a jour qu'apres une fermeture propre)
+		long courant = -1;
+		for (int i = 0; i < blocs; i++) {
+			long marque = map.getLong(HEADER_SIZE + i * bloc) - 1;
+			if (marque >= 0 && marque % bloc == 0 && (marque / bloc) % blocs == i) courant = Math.max(courant, marque / bloc);
+		}
+		//le plus ancien bloc complet suit le bloc courant, si le fichier a deja fait le tour
+		long premier = Math.max(0, courant - blocs + 1);
+		byte[] message = new byte[Edns.MAX_TCP_SIZE];
+		byte[] adresse4 = new byte[4], adresse16 = new byte[16];
+		long n = 0;
+		for (long i = premier; i <= courant; i++) {
+			int debutBloc = HEADER_SIZE + (int) (i % blocs) * bloc;
+			int p = 0;
+			while (p + ENTETE_ENREGISTREMENT <= bloc) {
+				//fin du bloc, reste d'un tour precedent ou enregistrement incomplet
+				if (map.getLong(debutBloc + p) != i * bloc + p + 1) break;
+				int taille = map.getInt(debutBloc + p + 8);
+				if (taille < ENTETE_ENREGISTREMENT || p + taille > bloc) break;
+				ByteBuffer b = map.duplicate();
+				b.position(debutBloc + p + 12);
+				long heure = b.getLong();
+				int sens = b.get();
+				boolean tcp = b.get() != 0;
+				int longueurAdresse = b.get();
+				b.get();
+				byte[] adresse = longueurAdresse == 16 ? adresse16 : adresse4;
+				b.get(adresse);
+				b.position(b.position() + 16 - adresse.length);
+				int port = b.getShort() & 0xFFFF;
+				int length = b.getShort() & 0xFFFF;
+				if (ENTETE_ENREGISTREMENT + length != taille) break;
+				b.get(message, 0, length);
+				visiteur.paquet(heure, sens, tcp, new InetSocketAddress(InetAddress.getByAddress(adresse), port), message, length);
+				n++;
+				p += taille;
+			}
+		}
+		return n;
+	}
+}
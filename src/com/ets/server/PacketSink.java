@@ -0,0 +1,27 @@
+package com.ets.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Moyen d'envoi d'un message DNS, fourni par le moteur qui a recu le paquet.
+ * Les implementations doivent pouvoir etre appelees par plusieurs threads.
+ */
+public interface PacketSink {
+
+	/**
+	 * Envoie un message. Les octets peuvent etre reutilises des le retour de la methode.
+	 * @param data : tampon contenant le message
+	 * @param offset : debut du message dans le tampon
+	 * @param length : taille du message
+	 * @param destination : adresse et port du destinataire
+	 * @throws IOException
+	 */
+	void send(byte[] data, int offset, int length, InetSocketAddress destination) throws IOException;
+
+	/**
+	 * @return true pour un transport par paquets (UDP), dont la taille des reponses est limitee;
+	 * false pour un flux (TCP)
+	 */
+	boolean isDatagram();
+}
@@ -0,0 +1,321 @@
+package com.ets.server;
+
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Table des requetes redirigees vers un autre serveur DNS et en attente de reponse.
+ *
+ * Chaque requete redirigee recoit un nouvel identifiant (16 bits) choisi au hasard
+ * parmi ceux qui ne sont pas utilises : deux clients qui emploient le meme identifiant
+ * ne peuvent donc pas entrer en collision. La reponse du serveur distant est associee
+ * a son client par cet identifiant ET par la question (nom, type, classe), ce qui evite
+ * de transmettre une reponse a la mauvaise personne.
+ *
+ * Les entrees expirent grace a une roue temporelle (timer wheel) : chaque case couvre
+ * TICK_MS millisecondes et l'avancement de la roue ne visite que les cases echues.
+ * Le nombre d'entrees est plafonne pour borner la memoire utilisee.
+ *
+ * Une entree expiree est retiree de la table et mise de cote; le Forwarder la recupere
+ * avec expirer() pour la renvoyer a un autre serveur (elle recoit alors un nouvel
+ * identifiant) ou pour repondre au client que la resolution a echoue.
+ *
+ * Les requetes simultanees pour une meme question (nom, type, classe) sont regroupees :
+ * une seule est envoyee, les autres attendent sa reponse (rejoindre()), qui est ensuite
+ * retournee a chacun des clients avec son propre identifiant.
+ */
+public class PendingQueryTable {
+	public final static int DEFAULT_CAPACITY = 8192; //nombre max de requetes en attente
+	public final static int MAX_CAPACITY = 32768; //la moitie des identifiants possibles
+	public final static long DEFAULT_TIMEOUT_MS = 5000;
+	private final static int MAX_ATTENTES = 256; //clients en attente d'une meme requete
+	private final static long TICK_MS = 100; //resolution de la roue
+	private final static int WHEEL_SIZE = 128; //nombre de cases (puissance de 2)
+
+	/**
+	 * Une requete en attente de reponse
+	 */
+	public static class Entry {
+		private int upstreamId; //identifiant utilise vers le serveur distant
+		private final int clientId; //identifiant d'origine du client
+		private final InetSocketAddress client; //adresse et port du client
+		private final String name; //nom normalise de la question
+		private final int qtype;
+		private final int qclass;
+		private final PacketSink sink; //moyen de repondre au client
+		private final byte[] requete; //copie de la requete, renvoyee en cas de nouvel essai
+		private Forwarder.Upstream upstream; //serveur interroge lors du dernier essai
+		private final long debut = System.nanoTime(); //reception de la requete du client
+		private long envoi; //moment du dernier envoi (System.nanoTime)
+		private int essais = 0;
+		private List<Entry> attentes = null; //requetes identiques en attente de la meme reponse
+		private long expireTick;
+		private Entry prev, next; //chainage dans une case de la roue
+
+		/**
+		 * Constructeur
+		 * @param clientId : identifiant de la requete du client
+		 * @param client : adresse et port du client
+		 * @param name : nom demande
+		 * @param qtype : type de la question
+		 * @param qclass : classe de la question
+		 * @param sink : moyen d'envoi de la reponse au client
+		 * @param requete : copie de la requete du client (son identifiant sera remplace)
+		 */
+		public Entry(int clientId, InetSocketAddress client, String name, int qtype, int qclass,
+				PacketSink sink, byte[] requete) {
+			this.clientId = clientId;
+			this.client = client;
+			this.name = RecordStore.normalize(name);
+			this.qtype = qtype;
+			this.qclass = qclass;
+			this.sink = sink;
+			this.requete = requete;
+		}
+
+		public int getUpstreamId() {
+			return upstreamId;
+		}
+
+		public int getClientId() {
+			return clientId;
+		}
+
+		public InetSocketAddress getClient() {
+			return client;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getQtype() {
+			return qtype;
+		}
+
+		public int getQclass() {
+			return qclass;
+		}
+
+		public PacketSink getSink() {
+			return sink;
+		}
+
+		public byte[] getRequete() {
+			return requete;
+		}
+
+		public Forwarder.Upstream getUpstream() {
+			return upstream;
+		}
+
+		public long getEnvoi() {
+			return envoi;
+		}
+
+		/**
+		 * @return le moment ou la requete du client a ete recue (System.nanoTime)
+		 */
+		public long getDebut() {
+			return debut;
+		}
+
+		/**
+		 * @return le nombre d'envois de la requete
+		 */
+		public int getEssais() {
+			return essais;
+		}
+
+		/**
+		 * @return les requetes des autres clients regroupees avec celle-ci, null s'il n'y en a pas.
+		 * La liste n'est plus modifiee une fois l'entree retiree de la table.
+		 */
+		public List<Entry> getAttentes() {
+			return attentes;
+		}
+
+		private String question() {
+			return name + '/' + qtype + '/' + qclass;
+		}
+	}
+
+	private final Entry[] byId = new Entry[65536];
+	private final Entry[] wheel = new Entry[WHEEL_SIZE];
+	private final HashMap<String, Entry> byQuestion = new HashMap<String, Entry>(); //requetes envoyees, par question
+	private final int capacity;
+	private final long timeoutTicks;
+	private final Random random = new SecureRandom();
+	private final long startMillis = System.currentTimeMillis();
+	private long currentTick = 0;
+	private int size = 0;
+	private long expired = 0;
+	private long regroupees = 0;
+	private List<Entry> echues = new ArrayList<Entry>(); //expirees, pas encore reprises par expirer()
+
+	/**
+	 * Constructeur par defaut
+	 */
+	public PendingQueryTable(){
+		this(DEFAULT_CAPACITY, DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * Constructeur
+	 * @param capacity : nombre max de requetes en attente (plafonne a MAX_CAPACITY)
+	 * @param timeoutMillis : delai apres lequel une requete sans reponse est oubliee
+	 */
+	public PendingQueryTable(int capacity, long timeoutMillis){
+		if (capacity <= 0 || timeoutMillis <= 0)
+			throw new IllegalArgumentException("capacity et timeout doivent etre positifs");
+		this.capacity = Math.min(capacity, MAX_CAPACITY);
+		this.timeoutTicks = Math.max(1, (timeoutMillis + TICK_MS - 1) / TICK_MS);
+	}
+
+	/**
+	 * Enregistre une requete a rediriger (ou a renvoyer apres expiration). Un nouvel
+	 * identifiant lui est attribue et ecrit dans sa copie de la requete.
+	 * @param e : la requete, absente de la table
+	 * @param upstream : serveur auquel elle va etre envoyee
+	 * @return false si la table est pleine
+	 */
+	public synchronized boolean register(Entry e, Forwarder.Upstream upstream){
+		advance();
+		if (size >= capacity) return false;
+
+		int id = random.nextInt(65536);
+		while (byId[id] != null) id = (id + 1) & 0xFFFF; //au moins la moitie des cases est libre
+
+		e.upstreamId = id;
+		e.requete[0] = (byte) (id >> 8);
+		e.requete[1] = (byte) id;
+		e.upstream = upstream;
+		e.envoi = System.nanoTime();
+		e.essais++;
+		e.expireTick = currentTick + timeoutTicks;
+		byId[id] = e;
+		link(e);
+		size++;
+		String question = e.question();
+		if (!byQuestion.containsKey(question)) byQuestion.put(question, e);
+		return true;
+	}
+
+	/**
+	 * Ajoute une requete aux clients en attente d'une requete identique deja envoyee.
+	 * @param attente : la requete du client, qui ne sera pas envoyee
+	 * @return false si aucune requete identique n'est en attente (ou si elle a trop de clients)
+	 */
+	public synchronized boolean rejoindre(Entry attente){
+		advance();
+		Entry e = byQuestion.get(attente.question());
+		if (e == null) return false;
+		if (e.attentes == null) e.attentes = new ArrayList<Entry>(2);
+		else if (e.attentes.size() >= MAX_ATTENTES) return false;
+		e.attentes.add(attente);
+		regroupees++;
+		return true;
+	}
+
+	/**
+	 * Retire la requete qui correspond a une reponse recue.
+	 * @param upstreamId : identifiant lu dans la reponse
+	 * @param upstream : serveur qui a envoye la reponse
+	 * @param name : nom de la question de la reponse
+	 * @param qtype : type de la question de la reponse
+	 * @param qclass : classe de la question de la reponse
+	 * @return l'entree du client, null si aucune requete en attente ne correspond ou si elle
+	 * a ete envoyee a un autre serveur
+	 */
+	public synchronized Entry take(int upstreamId, Forwarder.Upstream upstream, String name, int qtype, int qclass){
+		advance();
+		Entry e = byId[upstreamId & 0xFFFF];
+		if (e == null || e.upstream != upstream || e.qtype != qtype || e.qclass != qclass
+				|| !e.name.equals(RecordStore.normalize(name))) {
+			return null;
+		}
+		remove(e);
+		return e;
+	}
+
+	/**
+	 * @return le nombre de requetes en attente
+	 */
+	public synchronized int size(){
+		advance();
+		return size;
+	}
+
+	/**
+	 * Retourne les requetes expirees depuis le dernier appel. Elles ne sont plus dans la table.
+	 * @return les requetes expirees, dans l'ordre d'expiration
+	 */
+	public synchronized List<Entry> expirer(){
+		advance();
+		if (echues.isEmpty()) return Collections.<Entry>emptyList();
+		List<Entry> result = echues;
+		echues = new ArrayList<Entry>();
+		return result;
+	}
+
+	/**
+	 * @return le nombre de requetes regroupees avec une requete identique depuis le demarrage
+	 */
+	public synchronized long getRegroupees(){
+		return regroupees;
+	}
+
+	/**
+	 * @return le nombre de requetes expirees sans reponse depuis le demarrage
+	 */
+	public synchronized long getExpired(){
+		return expired;
+	}
+
+	/**
+	 * Fait avancer la roue jusqu'au temps courant et oublie les requetes expirees.
+	 */
+	private void advance(){
+		long now = (System.currentTimeMillis() - startMillis) / TICK_MS;
+		//au dela d'un tour complet, chaque case n'a besoin d'etre visitee qu'une fois
+		if (now - currentTick > WHEEL_SIZE) currentTick = now - WHEEL_SIZE;
+		while (currentTick < now) {
+			currentTick++;
+			Entry e = wheel[(int) (currentTick & (WHEEL_SIZE - 1))];
+			while (e != null) {
+				Entry suivant = e.next;
+				if (e.expireTick <= currentTick) {
+					remove(e);
+					echues.add(e);
+					expired++;
+				}
+				e = suivant;
+			}
+		}
+	}
+
+	private void link(Entry e){
+		int slot = (int) (e.expireTick & (WHEEL_SIZE - 1));
+		e.prev = null;
+		e.next = wheel[slot];
+		if (e.next != null) e.next.prev = e;
+		wheel[slot] = e;
+	}
+
+	private void remove(Entry e){
+		int slot = (int) (e.expireTick & (WHEEL_SIZE - 1));
+		if (e.prev != null) e.prev.next = e.next;
+		else wheel[slot] = e.next;
+		if (e.next != null) e.next.prev = e.prev;
+		e.prev = e.next = null;
+		byId[e.upstreamId] = null;
+		size--;
+		String question = e.question();
+		if (byQuestion.get(question) == e) byQuestion.remove(question);
+	}
+}
@@ -59,7 +59,8 @@ import java.util.Scanner;
 	}
 	
 	/**
-	 * Search un hostname et retourne une ip
+	 * Search un hostname et retourne une ip. La casse et le point final sont ignores
+	 * (le serveur, lui, cherche dans l'index de RecordStore).
 	 * @param hostname = adresse dns a chercher
 	 */
 	public List<String> StartResearch(String hostname){
@@ -86,10 +87,11 @@ import java.util.Scanner;
 		//uneligne = scanneurFichierSource.nextLine();
 		//hostnameFromFile = uneligne.split(" ");
 		
+		String cle = RecordStore.normalize(hostname);
 		while( scanneurFichierSource.hasNextLine() ){
 			uneligne = scanneurFichierSource.nextLine();
-			hostnameFromFile = uneligne.split(" ");
-			if(hostnameFromFile[0].equals(hostname)){
+			hostnameFromFile = uneligne.trim().split("\\s+");
+			if(hostnameFromFile.length == 2 && RecordStore.normalize(hostnameFromFile[0]).equals(cle)){
 				adresslist.add(hostnameFromFile[1]);
 			}
 		}
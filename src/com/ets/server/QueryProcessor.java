@@ -0,0 +1,511 @@
+package com.ets.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Traitement d'un message DNS recu, independamment de la facon dont il a ete recu.
+ * Une question est resolue a partir de la table en memoire ou redirigee vers l'autre
+ * serveur DNS; une reponse de celui-ci est retournee au client qui l'attendait.
+ *
+ * Les reponses des autres serveurs arrivent par les sockets de l'UpstreamSocketPool
+ * (processUpstream); si ces sockets sont utilises, une reponse recue sur le port des
+ * clients est ignoree.
+ *
+ * Les moteurs de reception (UDPReceiver, NioUDPServer) partagent une meme instance :
+ * elle ne garde aucun etat propre a un paquet et peut etre appelee par plusieurs threads.
+ * @author Max
+ */
+public class QueryProcessor {
+	private volatile RecordStore recordStore; //table en memoire construite a partir de DNSFile, remplacee au rechargement
+	private final Forwarder forwarder; //redirection vers les autres serveurs et requetes en attente
+	private final AnswerRecorder answerRecorder; //enregistrement des adresses apprises dans le fichier DNS
+	private final boolean RedirectionSeulement;
+	private final ResponseCache responseCache; //reponses des autres serveurs, null si desactive
+	private volatile boolean reponsesSurPortClient = true; //false si les reponses arrivent par l'UpstreamSocketPool
+	private volatile int ednsUdpSize = Edns.DEFAULT_UDP_SIZE; //taille max des reponses UDP annoncee aux clients EDNS
+	private volatile Zones zones = null; //zones dont le serveur fait autorite, null si aucune
+	private volatile boolean contextesPartages = false; //true avec un thread par requete : reserve au lieu du ThreadLocal
+	private final Metrics metrics = new Metrics(); //compteurs et durees, exportes par le MetricsServer
+	private volatile PacketCapture capture = null; //copie des requetes et des reponses des clients, null si aucune
+
+	/** Objets de travail reutilises par chaque thread, pour ne rien allouer par paquet */
+	private static class Contexte {
+		final DNSMessage message = new DNSMessage();
+		final StringBuilder nom = new StringBuilder(DNSMessage.MAX_NAME_LENGTH);
+		final byte[] reponse = new byte[UDPReceiver.BUF_SIZE]; //paquet de reponse en construction
+		final DNSMessage sortie = new DNSMessage(); //lecture de la reponse a ajuster avant l'envoi
+		final DNSMessage requete = new DNSMessage(); //lecture de la requete d'un client en attente
+		final AnswerEncoder.Travail encodage = new AnswerEncoder.Travail(); //suffixes et chaine de CNAME des reponses
+	}
+	private final ThreadLocal<Contexte> contexte = new ThreadLocal<Contexte>() {
+		protected Contexte initialValue() {
+			return new Contexte();
+		}
+	};
+	/** Contextes libres, quand chaque requete a son propre thread (un ThreadLocal serait recree a chaque fois) */
+	private final ArrayBlockingQueue<Contexte> reserve = new ArrayBlockingQueue<Contexte>(MAX_CONTEXTES_LIBRES);
+	private final static int MAX_CONTEXTES_LIBRES = 256;
+	/** Echanges TCP avec les autres serveurs (reponses tronquees), en nombre limite */
+	private final Executor echangesTcp = VirtualThreads.executor("dns-upstream-tcp-");
+	private final Semaphore placesTcp = new Semaphore(MAX_ECHANGES_TCP);
+	private final static int MAX_ECHANGES_TCP = 64;
+
+	/**
+	 * Constructeur
+	 * @param recordStore : table des adresses connues
+	 * @param forwarder : redirection vers les autres serveurs DNS
+	 * @param answerRecorder : enregistrement des adresses apprises (thread deja demarre), null pour ne pas les enregistrer
+	 * @param RedirectionSeulement : true pour toujours rediriger (la table n'est pas consultee)
+	 * @param responseCache : cache des reponses redirigees, null pour ne pas en utiliser
+	 */
+	public QueryProcessor(RecordStore recordStore, Forwarder forwarder,
+			AnswerRecorder answerRecorder, boolean RedirectionSeulement, ResponseCache responseCache) {
+		this.recordStore = recordStore;
+		this.forwarder = forwarder;
+		this.answerRecorder = answerRecorder;
+		this.RedirectionSeulement = RedirectionSeulement;
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * @return la table en memoire
+	 */
+	public RecordStore getRecordStore() {
+		return recordStore;
+	}
+
+	/**
+	 * Met en service une nouvelle table. Le remplacement est atomique : un paquet en cours
+	 * de traitement termine avec l'ancienne table, les suivants utilisent la nouvelle.
+	 * @param recordStore : table deja chargee
+	 */
+	public void setRecordStore(RecordStore recordStore) {
+		this.recordStore = recordStore;
+	}
+
+	/**
+	 * @return les compteurs du traitement des paquets
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param capture : fichier ou copier les requetes des clients et nos reponses, null pour arreter
+	 */
+	public void setCapture(PacketCapture capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * @param b : false pour ignorer les reponses recues sur le port des clients
+	 */
+	public void setReponsesSurPortClient(boolean b) {
+		this.reponsesSurPortClient = b;
+	}
+
+	/**
+	 * @param size : taille max des reponses UDP annoncee dans l'OPT (EDNS) de nos reponses
+	 */
+	public void setEdnsUdpSize(int size) {
+		if (size < Edns.MIN_UDP_SIZE || size > Edns.MAX_UDP_SIZE)
+			throw new IllegalArgumentException("La taille EDNS doit etre entre " + Edns.MIN_UDP_SIZE + " et " + Edns.MAX_UDP_SIZE);
+		this.ednsUdpSize = size;
+	}
+
+	/**
+	 * @param zones : zones dont le serveur fait autorite (jamais redirigees), null si aucune
+	 */
+	public void setZones(Zones zones) {
+		this.zones = zones;
+	}
+
+	/**
+	 * @param b : true si chaque requete est traitee sur un nouveau thread (threads virtuels) :
+	 * les objets de travail sont alors pris dans une reserve commune
+	 */
+	public void setContextesPartages(boolean b) {
+		this.contextesPartages = b;
+	}
+
+	private Contexte prendreContexte() {
+		if (!contextesPartages) return contexte.get();
+		Contexte ctx = reserve.poll();
+		return ctx != null ? ctx : new Contexte();
+	}
+
+	private void rendreContexte(Contexte ctx) {
+		if (contextesPartages) reserve.offer(ctx);
+	}
+
+	/**
+	 * Analyse un paquet recu sur le port des clients et y repond. Peut etre appelee par
+	 * plusieurs threads en parallele.
+	 * @param data : le paquet recu (peut etre plus grand que le message)
+	 * @param length : la taille du message
+	 * @param source : adresse et port de l'emetteur du paquet
+	 * @param sink : moyen d'envoi des reponses et des redirections
+	 */
+	public void process(byte[] data, int length, InetSocketAddress source, PacketSink sink) {
+		traiter(data, length, source, sink, false);
+	}
+
+	/**
+	 * Traite un paquet recu sur un socket de redirection : seules les reponses sont acceptees.
+	 * @param data : le paquet recu (peut etre plus grand que le message)
+	 * @param length : la taille du message
+	 * @param source : adresse et port de l'emetteur du paquet
+	 */
+	public void processUpstream(byte[] data, int length, InetSocketAddress source) {
+		traiter(data, length, source, null, true);
+	}
+
+	private void traiter(byte[] data, int length, InetSocketAddress source, PacketSink sink, boolean depuisUpstream) {
+		//The parser and the name buffer are reused for every packet of this thread (or of the shared pool)
+		long debut = System.nanoTime();
+		Contexte ctx = prendreContexte();
+		try {
+                DNSMessage message = ctx.message;
+                //the detail of a packet is logged (DEBUG) for a sample of the packets only
+                boolean trace = Log.tracer();
+
+                //the questions of the clients are captured as received, even if they cannot be read
+                PacketCapture capture = this.capture;
+                if(capture != null && !depuisUpstream && (length < 3 || (data[2] & 0x80) == 0)){
+                    capture.ecrire(PacketCapture.SENS_REQUETE,!sink.isDatagram(),source,data,length);
+                }
+
+                if(!message.wrap(data, length) || !message.hasQuestion()){
+                    if(trace) Log.debug("Malformed packet from "+source+" dropped");
+                    metrics.abandon(Metrics.ABANDON_MALFORME);
+                    return;
+                }
+
+                //questions come from clients, answers from the upstream sockets (or the client port if they are not used)
+                if(message.isResponse() ? !depuisUpstream && !reponsesSurPortClient : depuisUpstream){
+                    if(trace) Log.debug("Unexpected packet from "+source+" on this port dropped");
+                    metrics.abandon(Metrics.ABANDON_INATTENDU);
+                    return;
+                }
+
+                int requestId = message.getId();
+
+                //we extract the domainName that we have to resolve
+                ctx.nom.setLength(0);
+                if(!message.appendName(message.getQnameOffset(), ctx.nom)){
+                    if(trace) Log.debug("Invalid domain name from "+source+" dropped");
+                    metrics.abandon(Metrics.ABANDON_MALFORME);
+                    return;
+                }
+                String domainName = ctx.nom.toString();
+
+                //then the type and the class of the question
+                int qtype = message.getQtype();
+                int qclass = message.getQclass();
+
+                //if the request is a question
+                if(!message.isResponse()){
+                    metrics.requete(qtype);
+
+                    //EDNS: the size of the answers this client can receive
+                    int opt = message.findOpt();
+                    if(opt >= 0 && message.optVersion(opt) != 0){
+                        if(trace) Log.debug("Unsupported EDNS version from "+source+", BADVERS sent");
+                        envoyer(sink,ctx.reponse,Edns.repondreBadVers(message,ctx.reponse,ednsUdpSize),source);
+                        return;
+                    }
+                    boolean edns = opt >= 0;
+                    int limite = sink.isDatagram() ? Edns.limite(message,opt,ednsUdpSize) : Edns.MAX_TCP_SIZE;
+
+                    //the table only holds records of class IN
+                    RecordStore store = this.recordStore;
+                    boolean table = !this.RedirectionSeulement && qclass == DNSMessage.CLASS_IN;
+                    RecordStore.RecordSet domainIpList = table ? store.find(domainName,qtype) : null;
+                    //the names of our own zones are never forwarded
+                    Zones zones = this.zones;
+                    Zones.Zone zone = table && zones != null ? zones.zone(domainName) : null;
+                    int cachedLength;
+                    int origine;
+
+                    if(domainIpList!=null){
+                        int answerLength = AnswerEncoder.encode(message,domainIpList,store,ctx.reponse,ctx.encodage);
+                        if(zone!=null) AnswerEncoder.marquerAutorite(ctx.reponse,answerLength);
+                        answerLength = Edns.ajuster(ctx.sortie,ctx.reponse,answerLength,limite,edns,ednsUdpSize);
+                        envoyer(sink,ctx.reponse,answerLength,source);
+                        origine = Metrics.SOURCE_TABLE;
+                    }
+                    else if(zone!=null){
+                        //The name is in one of our zones: it does not exist, or not with this type
+                        boolean existe = store.existe(domainName);
+                        int answerLength = AnswerEncoder.encodeNegative(message,
+                                existe ? DNSMessage.RCODE_NOERROR : DNSMessage.RCODE_NXDOMAIN,
+                                zone.getWire(),store.find(zone.getNom(),DNSMessage.TYPE_SOA),ctx.reponse,ctx.encodage);
+                        answerLength = Edns.ajuster(ctx.sortie,ctx.reponse,answerLength,limite,edns,ednsUdpSize);
+                        envoyer(sink,ctx.reponse,answerLength,source);
+                        origine = Metrics.SOURCE_ZONE;
+                    }
+                    else if(responseCache!=null && (cachedLength = responseCache.get(domainName,message,ctx.reponse)) > 0){
+                        //An answer received earlier is still valid, no need to ask the other server
+                        cachedLength = Edns.ajuster(ctx.sortie,ctx.reponse,cachedLength,limite,edns,ednsUdpSize);
+                        envoyer(sink,ctx.reponse,cachedLength,source);
+                        origine = Metrics.SOURCE_CACHE;
+                    }
+                    else{
+                        //Rediction vers un autre serveur DNS, qui ne doit pas repondre plus grand que nos tampons
+                        Edns.limiterAnnonce(message,opt,UDPReceiver.BUF_SIZE);
+                        if(!redirigerRequete(sink,data,length,source,requestId,domainName,qtype,qclass)) return;
+                        origine = Metrics.SOURCE_REDIRECTION;
+                    }
+
+                    metrics.source(origine);
+                    if(origine != Metrics.SOURCE_REDIRECTION) metrics.getLatenceLocale().enregistrerDepuis(debut);
+                    if(trace) Log.debug("query id="+requestId+" from="+source+" name="+domainName
+                            +" type="+RecordData.typeName(qtype)+" class="+qclass+" edns="+edns+" answer="+Metrics.nomSource(origine));
+                }
+                else{ //if the request is an answer
+
+                    //We find the client who asked this question, the answer is dropped if nobody did
+                    //or if it does not come from one of our upstream servers
+                    PendingQueryTable.Entry client = forwarder.recevoir(message,domainName,source);
+                    if(client == null){
+                        if(trace) Log.debug("Unexpected answer (id="+requestId+") from "+source+" dropped");
+                        metrics.abandon(Metrics.ABANDON_INATTENDU);
+                        return;
+                    }
+                    if(trace) Log.debug("answer id="+requestId+" from="+source+" name="+domainName
+                            +" type="+RecordData.typeName(qtype)+" rcode="+message.getRcode()
+                            +" ancount="+message.getAncount()+" tc="+message.isTruncated()+" client="+client.getClient());
+
+                    //The answer did not fit in UDP: it is asked again over TCP, on another thread,
+                    //and the clients (TCP ones included) get the complete answer
+                    if(message.isTruncated()){
+                        redemanderTcp(client);
+                        return;
+                    }
+
+                    repondre(client,data,length,domainName,ctx);
+                }
+
+		} catch (Exception e) {
+			Log.error("Probleme a l'execution", e);
+		} finally {
+			rendreContexte(ctx);
+		}
+	}
+
+	/**
+	 * Retourne la reponse d'un serveur de redirection au client qui l'attendait et a ceux
+	 * dont la requete a ete regroupee avec la sienne. La reponse est gardee dans le cache et
+	 * ses enregistrements sont appris.
+	 * @param client : requete du client, retiree de la table des requetes en attente
+	 * @param data : la reponse, deja lue dans ctx.message (son identifiant est remplace)
+	 * @param length : sa taille
+	 * @param domainName : nom de la question
+	 */
+	private void repondre(PendingQueryTable.Entry client, byte[] data, int length, String domainName, Contexte ctx) throws IOException{
+		DNSMessage message = ctx.message;
+
+		//We give back to the answer the id chosen by the client
+		data[0] = (byte) (client.getClientId() >> 8);
+		data[1] = (byte) client.getClientId();
+
+		//The answer is kept with its TTL (positive or negative) for the next clients
+		if(responseCache!=null){
+			responseCache.put(domainName,message);
+		}
+
+		//We update the content of the DNS file with the records of the answer
+		//(a record that cannot be learned must never prevent the answer from being sent)
+		try{
+			updateDnsFile(message,ctx.nom);
+		} catch (RuntimeException e) {
+			Log.warn("Records of the answer for "+domainName+" not learned: "+e);
+		}
+
+		//The clients who asked the same question in the meantime get a copy of the answer
+		if(client.getAttentes()!=null){
+			repondreAttentes(client.getAttentes(),message,ctx);
+		}
+
+		//we send the answer, as received with its original TTLs, to the client who made the request
+		//(it is adjusted in place to the size this client can receive)
+		envoyer(client.getSink(),data,ajusterPour(ctx,client,data,length),client.getClient());
+		metrics.getLatenceRedirection().enregistrerDepuis(client.getDebut());
+	}
+
+	/**
+	 * Redemande en TCP, au serveur qui a envoye une reponse tronquee (TC), la requete d'un
+	 * client. L'echange se fait sur un thread a part pour ne pas bloquer un worker, au plus
+	 * MAX_ECHANGES_TCP en meme temps; si aucune place n'est libre ou si le serveur ne donne
+	 * pas de reponse complete, les clients recoivent SERVFAIL plutot qu'une reponse tronquee.
+	 * @param client : requete du client, retiree de la table des requetes en attente
+	 */
+	private void redemanderTcp(final PendingQueryTable.Entry client) throws IOException{
+		if(!placesTcp.tryAcquire()){
+			if(Log.isDebug()) Log.debug("Too many TCP queries to the upstream servers, SERVFAIL sent for "+client.getName());
+			forwarder.repondreEchec(client);
+			return;
+		}
+		Runnable echange = new Runnable() {
+			public void run() {
+				try {
+					echangerTcp(client);
+				} finally {
+					placesTcp.release();
+				}
+			}
+		};
+		try {
+			echangesTcp.execute(echange);
+		} catch (RuntimeException e) {
+			placesTcp.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Echange TCP de redemanderTcp, sur son propre thread
+	 */
+	private void echangerTcp(PendingQueryTable.Entry client){
+		byte[] reponse = null;
+		try {
+			reponse = forwarder.demanderTcp(client);
+		} catch (IOException e) {
+			if(Log.isDebug()) Log.debug("TCP query to "+client.getUpstream()+" for "+client.getName()+" failed: "+e.getMessage());
+		}
+		//un thread par echange : le contexte vient de la reserve commune plutot que d'un ThreadLocal
+		Contexte ctx = reserve.poll();
+		if(ctx == null) ctx = new Contexte();
+		try {
+			DNSMessage message = ctx.message;
+			ctx.nom.setLength(0);
+			if(reponse != null && message.wrap(reponse,reponse.length) && message.isResponse() && !message.isTruncated()
+					&& message.hasQuestion() && message.appendName(message.getQnameOffset(),ctx.nom)
+					&& RecordStore.normalize(ctx.nom.toString()).equals(client.getName())
+					&& message.getQtype() == client.getQtype() && message.getQclass() == client.getQclass()){
+				//room is left for the OPT added for an EDNS client
+				byte[] data = new byte[reponse.length + Edns.OPT_SIZE];
+				System.arraycopy(reponse,0,data,0,reponse.length);
+				repondre(client,data,reponse.length,ctx.nom.toString(),ctx);
+			}
+			else{
+				if(Log.isDebug()) Log.debug("No complete TCP answer from "+client.getUpstream()+" for "+client.getName()+", SERVFAIL sent");
+				forwarder.repondreEchec(client);
+			}
+		} catch (IOException e) {
+			Log.error("Reponse pour "+client.getName()+" impossible", e);
+		} finally {
+			reserve.offer(ctx);
+		}
+	}
+
+	/**
+	 * Envoie une reponse construite ou ajustee
+	 * @param length : taille de la reponse, -1 si elle n'a pu etre construite
+	 */
+	private void envoyer(PacketSink sink, byte[] reponse, int length, InetSocketAddress destination) throws IOException{
+		if(length < 0){
+			if(Log.isDebug()) Log.debug("Answer too large for "+destination+", dropped");
+			metrics.abandon(Metrics.ABANDON_TROP_GRAND);
+			return;
+		}
+		sink.send(reponse,0,length,destination);
+		metrics.reponse(reponse);
+		PacketCapture capture = this.capture;
+		if(capture != null) capture.ecrire(PacketCapture.SENS_REPONSE,!sink.isDatagram(),destination,reponse,length);
+	}
+
+	/**
+	 * Redirige une question du client vers un autre serveur DNS. La requete est enregistree
+	 * dans la table des requetes en attente sous un identifiant unique, la reponse pourra
+	 * ainsi etre retournee au bon client; le Forwarder choisit le serveur et renvoie la
+	 * requete a un autre s'il ne repond pas.
+	 * @return false si la requete a ete abandonnee (trop de requetes en attente)
+	 */
+	private boolean redirigerRequete(PacketSink sink, byte[] data, int length, InetSocketAddress source,
+			int requestId, String domainName, int qtype, int qclass) throws IOException{
+		if(!forwarder.transmettre(data,length,source,requestId,domainName,qtype,qclass,sink)){
+			metrics.abandon(Metrics.ABANDON_ATTENTE_PLEINE);
+			//under load, only the 1st, 2nd, 4th, 8th... dropped request is reported
+			long n = metrics.getAbandons(Metrics.ABANDON_ATTENTE_PLEINE);
+			if((n & (n - 1)) == 0) Log.warn("Too many pending queries, request for "+domainName+" dropped (total="+n+")");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Retourne une reponse aux clients dont la requete a ete regroupee avec celle qui a ete envoyee.
+	 * Chacun recoit son identifiant, son bit RD et la casse de son nom.
+	 * @param attentes : requetes des clients
+	 * @param reponse : la reponse recue, deja lue (elle n'est pas modifiee)
+	 * @param ctx : objets de travail du thread
+	 */
+	private void repondreAttentes(List<PendingQueryTable.Entry> attentes, DNSMessage reponse, Contexte ctx) throws IOException{
+		int length = reponse.getLength();
+		int questionEnd = reponse.getQuestionEnd();
+		byte[] out = length <= ctx.reponse.length ? ctx.reponse : new byte[length];
+		for(PendingQueryTable.Entry attente : attentes){
+			byte[] requete = attente.getRequete();
+			System.arraycopy(reponse.getBuffer(),0,out,0,length);
+			out[0] = (byte) (attente.getClientId() >> 8);
+			out[1] = (byte) attente.getClientId();
+			out[2] = (byte) ((out[2] & 0xFE) | (requete[2] & 0x01));
+			if(questionEnd <= requete.length && requete[questionEnd - 5] == 0 && out[questionEnd - 5] == 0){
+				System.arraycopy(requete,DNSMessage.HEADER_SIZE,out,DNSMessage.HEADER_SIZE,questionEnd - 4 - DNSMessage.HEADER_SIZE);
+			}
+			envoyer(attente.getSink(),out,ajusterPour(ctx,attente,out,length),attente.getClient());
+			metrics.getLatenceRedirection().enregistrerDepuis(attente.getDebut());
+		}
+	}
+
+	/**
+	 * Ajuste une reponse redirigee a la taille que le client peut recevoir (EDNS)
+	 * @param client : requete du client
+	 * @param out : la reponse, modifiee sur place
+	 * @param length : sa taille
+	 * @return la nouvelle taille
+	 */
+	private int ajusterPour(Contexte ctx, PendingQueryTable.Entry client, byte[] out, int length){
+		byte[] requete = client.getRequete();
+		int opt = ctx.requete.wrap(requete, requete.length) ? ctx.requete.findOpt() : -1;
+		int limite = client.getSink().isDatagram() ? Edns.limite(ctx.requete,opt,ednsUdpSize) : Edns.MAX_TCP_SIZE;
+		return Edns.ajuster(ctx.sortie,out,length,limite,opt >= 0,ednsUdpSize);
+	}
+
+    /**
+     * Method that update the contant of the DNS file with the records received in the answer section if
+     * they are not already registered in. Every record of a supported type (A, AAAA, CNAME, MX, NS, SOA, TXT)
+     * and of class IN is kept under its own name, the names of a CNAME chain are thus learned too.
+     * @param message       The answer received, already wrapped
+     * @param nom           Work buffer for the names of the records
+     */
+    public void updateDnsFile(DNSMessage message,StringBuilder nom){
+
+        /*
+         *   For each record received in the response request, we check if it's already known by the
+         *   in-memory table. If not, it is added to the table (as learned, it is served by the cache)
+         *   and handed to the recorder, which saves it in the DNS file in the background.
+         */
+        int ancount = message.getAncount();
+        int rr = message.firstRecord();
+        for (int i = 0; i < ancount && rr >= 0; i++, rr = message.nextRecord(rr)){
+            if(message.rrClass(rr) != DNSMessage.CLASS_IN) continue;
+            byte[] rdata = RecordData.fromMessage(message,rr);
+            nom.setLength(0);
+            if(rdata == null || !message.appendName(rr,nom)) continue;
+            String hostname = nom.toString();
+            if(zones != null && zones.zone(hostname) != null) continue; //our own zones are not learned
+            int type = message.rrType(rr);
+            //a name that would not be read back as is from the DNS file is only kept in memory
+            if(recordStore.add(hostname,type,rdata,true) && answerRecorder!=null && RecordData.nomEnregistrable(hostname)){
+                answerRecorder.StartRecord(hostname,RecordData.formatValeur(type,rdata));
+            }
+        }
+    }
+}
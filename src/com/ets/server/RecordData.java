@@ -0,0 +1,536 @@
+package com.ets.server;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Conversion des enregistrements entre le format texte du fichier DNS et leur RDATA
+ * (format "wire", RFC 1035 3.3).
+ *
+ * Une ligne du fichier DNS est "hostname ip" pour une adresse IPv4 (format d'origine,
+ * celui de QueryFinder) ou "hostname TYPE donnees" pour les autres types :
+ * <pre>
+ * www.exemple.ca A 10.0.0.1
+ * www.exemple.ca AAAA 2001:db8::1
+ * alias.exemple.ca CNAME www.exemple.ca
+ * exemple.ca MX 10 mail.exemple.ca
+ * exemple.ca NS ns1.exemple.ca
+ * exemple.ca TXT "v=spf1 -all"
+ * exemple.ca TXT "dit \"bonjour\"" "ligne\013\010"
+ * exemple.ca SOA ns1.exemple.ca hostmaster.exemple.ca 2024010101 3600 600 86400 300
+ * </pre>
+ * Le RDATA est construit une seule fois, au chargement : les noms qu'il contient ne sont
+ * pas compresses et il est recopie tel quel dans les reponses.
+ *
+ * Dans les chaines TXT et les noms, les caracteres speciaux s'ecrivent comme dans un fichier
+ * de zone (RFC 1035 5.1) : \X pour le caractere X, \DDD pour l'octet de valeur decimale DDD.
+ * format() les utilise pour tout octet qui pourrait couper la ligne ou changer son sens
+ * (guillemet, barre oblique inverse, point dans une etiquette, espace dans un nom, octet
+ * non imprimable) : une valeur apprise d'un autre serveur ne peut ajouter de ligne au fichier.
+ */
+public class RecordData {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static int SOA_NOMBRES = 20; //serial, refresh, retry, expire, minimum
+
+	/**
+	 * Types supportes
+	 */
+	public final static int[] TYPES = { DNSMessage.TYPE_A, DNSMessage.TYPE_NS, DNSMessage.TYPE_CNAME,
+			DNSMessage.TYPE_SOA, DNSMessage.TYPE_MX, DNSMessage.TYPE_TXT, DNSMessage.TYPE_AAAA };
+
+	/**
+	 * Un enregistrement lu dans le fichier DNS
+	 */
+	public static class Ligne {
+		public final String nom; //nom normalise
+		public final int type;
+		public final byte[] rdata;
+
+		Ligne(String nom, int type, byte[] rdata) {
+			this.nom = nom;
+			this.type = type;
+			this.rdata = rdata;
+		}
+	}
+
+	private RecordData(){
+	}
+
+	/**
+	 * Lit une ligne du fichier DNS
+	 * @param uneligne : la ligne
+	 * @return l'enregistrement, null pour une ligne vide ou un commentaire (# ou ;)
+	 * @throws IllegalArgumentException si la ligne est invalide
+	 */
+	public static Ligne parseLigne(String uneligne){
+		String ligne = uneligne.trim();
+		if (ligne.isEmpty() || ligne.charAt(0) == '#' || ligne.charAt(0) == ';') return null;
+		String[] champs = ligne.split("\\s+", 3);
+		if (champs.length < 2) throw new IllegalArgumentException("Ligne incomplete : " + uneligne);
+		String nom = RecordStore.normalize(champs[0]);
+		if (champs.length == 2) {
+			return new Ligne(nom, DNSMessage.TYPE_A, parse(DNSMessage.TYPE_A, champs[1]));
+		}
+		int type = parseType(champs[1]);
+		if (type < 0) throw new IllegalArgumentException("Type inconnu : " + champs[1]);
+		return new Ligne(nom, type, parse(type, champs[2].trim()));
+	}
+
+	/**
+	 * @param nom : nom de l'enregistrement
+	 * @param type : son type
+	 * @param rdata : son RDATA
+	 * @return la ligne du fichier DNS correspondante
+	 */
+	public static String formatLigne(String nom, int type, byte[] rdata){
+		return nom + " " + formatValeur(type, rdata);
+	}
+
+	/**
+	 * @return la partie d'une ligne du fichier DNS qui suit le nom : l'adresse seule pour un
+	 * enregistrement A (format d'origine), le type et les donnees sinon
+	 */
+	public static String formatValeur(int type, byte[] rdata){
+		if (type == DNSMessage.TYPE_A) return format(type, rdata);
+		return typeName(type) + " " + format(type, rdata);
+	}
+
+	/**
+	 * @param mnemonique : nom du type (A, AAAA, CNAME, MX, NS, SOA, TXT), la casse est ignoree
+	 * @return le numero du type, -1 s'il n'est pas supporte
+	 */
+	public static int parseType(String mnemonique){
+		String m = mnemonique.toUpperCase(Locale.ROOT);
+		if (m.equals("A")) return DNSMessage.TYPE_A;
+		if (m.equals("AAAA")) return DNSMessage.TYPE_AAAA;
+		if (m.equals("CNAME")) return DNSMessage.TYPE_CNAME;
+		if (m.equals("MX")) return DNSMessage.TYPE_MX;
+		if (m.equals("NS")) return DNSMessage.TYPE_NS;
+		if (m.equals("TXT")) return DNSMessage.TYPE_TXT;
+		if (m.equals("SOA")) return DNSMessage.TYPE_SOA;
+		return -1;
+	}
+
+	/**
+	 * @return le nom du type, ou TYPEnnn (RFC 3597) s'il n'est pas supporte
+	 */
+	public static String typeName(int type){
+		switch (type) {
+		case DNSMessage.TYPE_A: return "A";
+		case DNSMessage.TYPE_AAAA: return "AAAA";
+		case DNSMessage.TYPE_CNAME: return "CNAME";
+		case DNSMessage.TYPE_MX: return "MX";
+		case DNSMessage.TYPE_NS: return "NS";
+		case DNSMessage.TYPE_TXT: return "TXT";
+		case DNSMessage.TYPE_SOA: return "SOA";
+		default: return "TYPE" + type;
+		}
+	}
+
+	/**
+	 * Construit le RDATA d'un enregistrement a partir de sa forme texte
+	 * @param type : type de l'enregistrement
+	 * @param texte : donnees (adresse, nom, "preference nom" pour MX, texte pour TXT,
+	 * "serveur responsable serial refresh retry expire minimum" pour SOA)
+	 * @return le RDATA
+	 * @throws IllegalArgumentException si les donnees sont invalides
+	 */
+	public static byte[] parse(int type, String texte){
+		switch (type) {
+		case DNSMessage.TYPE_A: {
+			int adresse = RecordStore.parseAddress(texte);
+			return new byte[] { (byte) (adresse >>> 24), (byte) (adresse >>> 16), (byte) (adresse >>> 8), (byte) adresse };
+		}
+		case DNSMessage.TYPE_AAAA:
+			return parseIPv6(texte);
+		case DNSMessage.TYPE_CNAME:
+		case DNSMessage.TYPE_NS:
+			return nameToWire(texte);
+		case DNSMessage.TYPE_MX: {
+			String[] champs = texte.split("\\s+");
+			if (champs.length != 2) throw new IllegalArgumentException("MX invalide : " + texte);
+			int preference;
+			try {
+				preference = Integer.parseInt(champs[0]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("MX invalide : " + texte);
+			}
+			if (preference < 0 || preference > 0xFFFF) throw new IllegalArgumentException("MX invalide : " + texte);
+			byte[] nom = nameToWire(champs[1]);
+			byte[] rdata = new byte[2 + nom.length];
+			rdata[0] = (byte) (preference >> 8);
+			rdata[1] = (byte) preference;
+			System.arraycopy(nom, 0, rdata, 2, nom.length);
+			return rdata;
+		}
+		case DNSMessage.TYPE_TXT:
+			return parseTxt(texte);
+		case DNSMessage.TYPE_SOA: {
+			String[] champs = texte.split("\\s+");
+			if (champs.length != 7) throw new IllegalArgumentException("SOA invalide : " + texte);
+			byte[] mname = nameToWire(champs[0]);
+			byte[] rname = nameToWire(champs[1]);
+			byte[] rdata = new byte[mname.length + rname.length + SOA_NOMBRES];
+			System.arraycopy(mname, 0, rdata, 0, mname.length);
+			System.arraycopy(rname, 0, rdata, mname.length, rname.length);
+			int p = mname.length + rname.length;
+			for (int i = 2; i < 7; i++, p += 4) {
+				long n;
+				try {
+					n = Long.parseLong(champs[i]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("SOA invalide : " + texte);
+				}
+				if (n < 0 || n > 0xFFFFFFFFL) throw new IllegalArgumentException("SOA invalide : " + texte);
+				rdata[p] = (byte) (n >>> 24);
+				rdata[p + 1] = (byte) (n >>> 16);
+				rdata[p + 2] = (byte) (n >>> 8);
+				rdata[p + 3] = (byte) n;
+			}
+			return rdata;
+		}
+		default:
+			throw new IllegalArgumentException("Type non supporte : " + type);
+		}
+	}
+
+	/**
+	 * @param rdata : RDATA d'un SOA
+	 * @return son champ minimum, le TTL des reponses negatives (RFC 2308 section 4)
+	 */
+	public static long soaMinimum(byte[] rdata){
+		int p = rdata.length - 4;
+		return ((long) (rdata[p] & 0xFF) << 24) | ((rdata[p + 1] & 0xFF) << 16) | ((rdata[p + 2] & 0xFF) << 8) | (rdata[p + 3] & 0xFF);
+	}
+
+	/**
+	 * @return la position qui suit un nom non compresse
+	 */
+	static int finNom(byte[] b, int offset){
+		while (offset < b.length && b[offset] != 0) offset += (b[offset] & 0xFF) + 1;
+		return offset + 1;
+	}
+
+	/**
+	 * @return la forme texte d'un RDATA (celle lue par parse())
+	 */
+	public static String format(int type, byte[] rdata){
+		switch (type) {
+		case DNSMessage.TYPE_A:
+			return RecordStore.formatAddress(((rdata[0] & 0xFF) << 24) | ((rdata[1] & 0xFF) << 16)
+					| ((rdata[2] & 0xFF) << 8) | (rdata[3] & 0xFF));
+		case DNSMessage.TYPE_AAAA:
+			try {
+				return InetAddress.getByAddress(rdata).getHostAddress();
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("AAAA invalide");
+			}
+		case DNSMessage.TYPE_CNAME:
+		case DNSMessage.TYPE_NS:
+			return wireToName(rdata, 0);
+		case DNSMessage.TYPE_MX:
+			return (((rdata[0] & 0xFF) << 8) | (rdata[1] & 0xFF)) + " " + wireToName(rdata, 2);
+		case DNSMessage.TYPE_TXT: {
+			StringBuilder sb = new StringBuilder();
+			for (int p = 0; p < rdata.length; p += 1 + (rdata[p] & 0xFF)) {
+				if (sb.length() > 0) sb.append(' ');
+				sb.append('"');
+				for (int i = p + 1, fin = Math.min(p + 1 + (rdata[p] & 0xFF), rdata.length); i < fin; i++) {
+					int c = rdata[i] & 0xFF;
+					if (c == '"' || c == '\\') sb.append('\\').append((char) c);
+					else if (c < ' ' || c > '~') echapper(sb, c);
+					else sb.append((char) c);
+				}
+				sb.append('"');
+			}
+			return sb.toString();
+		}
+		case DNSMessage.TYPE_SOA: {
+			int rname = finNom(rdata, 0);
+			StringBuilder sb = new StringBuilder(wireToName(rdata, 0)).append(' ').append(wireToName(rdata, rname));
+			for (int p = finNom(rdata, rname); p + 4 <= rdata.length; p += 4) {
+				sb.append(' ').append(((long) (rdata[p] & 0xFF) << 24) | ((rdata[p + 1] & 0xFF) << 16)
+						| ((rdata[p + 2] & 0xFF) << 8) | (rdata[p + 3] & 0xFF));
+			}
+			return sb.toString();
+		}
+		default:
+			throw new IllegalArgumentException("Type non supporte : " + type);
+		}
+	}
+
+	/**
+	 * Extrait le RDATA d'un enregistrement d'un message recu. Les noms qu'il contient sont
+	 * decompresses, le RDATA peut donc etre recopie dans un autre message.
+	 * @param message : le message, deja lu
+	 * @param rr : position de l'enregistrement
+	 * @return le RDATA, null si le type n'est pas supporte ou si l'enregistrement est invalide
+	 */
+	public static byte[] fromMessage(DNSMessage message, int rr){
+		int type = message.rrType(rr);
+		int offset = message.rrDataOffset(rr);
+		if (offset < 0) return null;
+		int length = message.rrDataLength(rr);
+		byte[] rdata;
+		switch (type) {
+		case DNSMessage.TYPE_A:
+		case DNSMessage.TYPE_AAAA:
+		case DNSMessage.TYPE_TXT:
+			if (type == DNSMessage.TYPE_TXT ? !chainesValides(message.getBuffer(), offset, length)
+					: length != (type == DNSMessage.TYPE_A ? 4 : 16)) return null;
+			rdata = new byte[length];
+			System.arraycopy(message.getBuffer(), offset, rdata, 0, length);
+			return rdata;
+		case DNSMessage.TYPE_CNAME:
+		case DNSMessage.TYPE_NS:
+		case DNSMessage.TYPE_MX: {
+			int debut = type == DNSMessage.TYPE_MX ? 2 : 0;
+			if (length < debut + 1) return null;
+			byte[] tmp = new byte[debut + DNSMessage.MAX_NAME_LENGTH];
+			System.arraycopy(message.getBuffer(), offset, tmp, 0, debut);
+			int fin = message.copyName(offset + debut, tmp, debut);
+			if (fin < 0) return null;
+			rdata = new byte[fin];
+			System.arraycopy(tmp, 0, rdata, 0, fin);
+			return rdata;
+		}
+		case DNSMessage.TYPE_SOA: {
+			byte[] tmp = new byte[2 * DNSMessage.MAX_NAME_LENGTH + SOA_NOMBRES];
+			int rname = message.skipName(offset);
+			int nombres = rname < 0 ? -1 : message.skipName(rname);
+			if (nombres < 0 || nombres + SOA_NOMBRES != offset + length) return null;
+			int p = message.copyName(offset, tmp, 0);
+			p = p < 0 ? -1 : message.copyName(rname, tmp, p);
+			if (p < 0) return null;
+			System.arraycopy(message.getBuffer(), nombres, tmp, p, SOA_NOMBRES);
+			rdata = new byte[p + SOA_NOMBRES];
+			System.arraycopy(tmp, 0, rdata, 0, rdata.length);
+			return rdata;
+		}
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return true si les chaines d'un RDATA TXT (longueur puis octets) couvrent exactement
+	 * ses length octets
+	 */
+	private static boolean chainesValides(byte[] b, int offset, int length){
+		if (length < 1 || offset + length > b.length) return false;
+		int p = offset, fin = offset + length;
+		while (p < fin) p += 1 + (b[p] & 0xFF);
+		return p == fin;
+	}
+
+	/**
+	 * @return true si un nom recu (un caractere par octet, DNSMessage.appendName) peut etre
+	 * ecrit tel quel au debut d'une ligne du fichier DNS : caracteres imprimables, sans espace,
+	 * guillemet ni barre oblique inverse
+	 */
+	public static boolean nomEnregistrable(String nom){
+		if (nom.isEmpty() || nom.charAt(0) == '#' || nom.charAt(0) == ';') return false;
+		for (int i = 0; i < nom.length(); i++) {
+			char c = nom.charAt(i);
+			if (c <= ' ' || c > '~' || c == '"' || c == '\\') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param nom : nom de domaine (le point final est facultatif), avec les echappements
+	 * \X et \DDD ecrits par wireToName
+	 * @return le nom au format "wire", non compresse
+	 * @throws IllegalArgumentException si une etiquette ou le nom est trop long, ou un
+	 * echappement invalide
+	 */
+	public static byte[] nameToWire(String nom){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(nom.length() + 2);
+		ByteArrayOutputStream etiquette = new ByteArrayOutputStream(63);
+		boolean point = false; //le dernier caractere lu est un point separateur (le point final est facultatif)
+		int p = 0;
+		while (p < nom.length()) {
+			if (nom.charAt(p) == '.') {
+				if (nom.length() > 1) ajouterEtiquette(out, etiquette, nom); //"." seul : la racine
+				point = true;
+				p++;
+			} else {
+				p = lireCaractere(nom, p, etiquette);
+				point = false;
+			}
+		}
+		if (!point && !nom.isEmpty()) ajouterEtiquette(out, etiquette, nom);
+		out.write(0);
+		if (out.size() > DNSMessage.MAX_NAME_LENGTH) throw new IllegalArgumentException("Nom trop long : " + nom);
+		return out.toByteArray();
+	}
+
+	private static void ajouterEtiquette(ByteArrayOutputStream out, ByteArrayOutputStream etiquette, String nom){
+		if (etiquette.size() == 0 || etiquette.size() > 63) throw new IllegalArgumentException("Nom invalide : " + nom);
+		out.write(etiquette.size());
+		out.write(etiquette.toByteArray(), 0, etiquette.size());
+		etiquette.reset();
+	}
+
+	/**
+	 * Ajoute a out les octets du caractere (ou de l'echappement \X, \DDD) en position p
+	 * @return la position qui le suit
+	 * @throws IllegalArgumentException si l'echappement est invalide
+	 */
+	private static int lireCaractere(String texte, int p, ByteArrayOutputStream out){
+		if (texte.charAt(p) != '\\') return ecrireCaractere(texte, p, out);
+		if (p + 1 >= texte.length()) throw new IllegalArgumentException("Echappement invalide : " + texte);
+		if (p + 3 < texte.length() && chiffre(texte.charAt(p + 1)) && chiffre(texte.charAt(p + 2)) && chiffre(texte.charAt(p + 3))) {
+			int valeur = (texte.charAt(p + 1) - '0') * 100 + (texte.charAt(p + 2) - '0') * 10 + (texte.charAt(p + 3) - '0');
+			if (valeur > 255) throw new IllegalArgumentException("Echappement invalide : " + texte);
+			out.write(valeur);
+			return p + 4;
+		}
+		return ecrireCaractere(texte, p + 1, out);
+	}
+
+	/**
+	 * Ajoute a out le caractere en position p, en UTF-8
+	 * @return la position qui le suit
+	 */
+	private static int ecrireCaractere(String texte, int p, ByteArrayOutputStream out){
+		int fin = Character.isHighSurrogate(texte.charAt(p)) && p + 1 < texte.length() ? p + 2 : p + 1;
+		byte[] b = texte.substring(p, fin).getBytes(UTF8);
+		out.write(b, 0, b.length);
+		return fin;
+	}
+
+	private static boolean chiffre(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Ajoute l'echappement \DDD d'un octet
+	 */
+	private static void echapper(StringBuilder sb, int octet){
+		sb.append('\\');
+		if (octet < 100) sb.append('0');
+		if (octet < 10) sb.append('0');
+		sb.append(octet);
+	}
+
+	/**
+	 * @param b : tampon contenant un nom non compresse
+	 * @param offset : position du nom
+	 * @return le nom au format texte, "." pour la racine; les points, guillemets et barres
+	 * obliques inverses d'une etiquette sont echappes (\X), les octets non imprimables et
+	 * l'espace aussi (\DDD)
+	 */
+	public static String wireToName(byte[] b, int offset){
+		StringBuilder sb = new StringBuilder();
+		while (offset < b.length && b[offset] != 0) {
+			int len = b[offset] & 0xFF;
+			if (sb.length() > 0) sb.append('.');
+			for (int i = offset + 1, fin = Math.min(offset + 1 + len, b.length); i < fin; i++) {
+				int c = b[i] & 0xFF;
+				if (c == '.' || c == '"' || c == '\\') sb.append('\\').append((char) c);
+				else if (c <= ' ' || c > '~') echapper(sb, c);
+				else sb.append((char) c);
+			}
+			offset += len + 1;
+		}
+		return sb.length() == 0 ? "." : sb.toString();
+	}
+
+	/**
+	 * Texte d'un enregistrement TXT : une ou plusieurs chaines entre guillemets (avec les
+	 * echappements \X et \DDD), ou le texte brut. Les chaines de plus de 255 octets sont
+	 * decoupees.
+	 */
+	private static byte[] parseTxt(String texte){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(texte.length() + 2);
+		if (texte.startsWith("\"")) {
+			ByteArrayOutputStream chaine = new ByteArrayOutputStream(texte.length());
+			int p = 0;
+			while (p < texte.length()) {
+				if (texte.charAt(p) == ' ' || texte.charAt(p) == '\t') {
+					p++;
+					continue;
+				}
+				if (texte.charAt(p) != '"') throw new IllegalArgumentException("TXT invalide : " + texte);
+				p++;
+				while (p < texte.length() && texte.charAt(p) != '"') p = lireCaractere(texte, p, chaine);
+				if (p >= texte.length()) throw new IllegalArgumentException("TXT invalide : " + texte);
+				ajouterChaine(out, chaine.toByteArray());
+				chaine.reset();
+				p++;
+			}
+		} else {
+			ajouterChaine(out, texte.getBytes(UTF8));
+		}
+		if (out.size() > 0xFFFF) throw new IllegalArgumentException("TXT trop long");
+		return out.toByteArray();
+	}
+
+	private static void ajouterChaine(ByteArrayOutputStream out, byte[] b){
+		int p = 0;
+		do {
+			int n = Math.min(255, b.length - p);
+			out.write(n);
+			out.write(b, p, n);
+			p += n;
+		} while (p < b.length);
+	}
+
+	/**
+	 * Convertit une adresse IPv6 textuelle (RFC 4291 2.2, avec "::" et IPv4 final facultatifs)
+	 * sans jamais faire de requete DNS
+	 */
+	private static byte[] parseIPv6(String texte){
+		int abrege = texte.indexOf("::");
+		if (abrege >= 0 && texte.indexOf("::", abrege + 1) >= 0) throw new IllegalArgumentException("IPv6 invalide : " + texte);
+		int[] tete = groupes(abrege >= 0 ? texte.substring(0, abrege) : texte, texte);
+		int[] queue = abrege >= 0 ? groupes(texte.substring(abrege + 2), texte) : new int[0];
+		if (abrege < 0 ? tete.length != 8 : tete.length + queue.length > 7)
+			throw new IllegalArgumentException("IPv6 invalide : " + texte);
+		byte[] adresse = new byte[16];
+		for (int i = 0; i < tete.length; i++) {
+			adresse[2 * i] = (byte) (tete[i] >> 8);
+			adresse[2 * i + 1] = (byte) tete[i];
+		}
+		for (int i = 0; i < queue.length; i++) {
+			int j = 8 - queue.length + i;
+			adresse[2 * j] = (byte) (queue[i] >> 8);
+			adresse[2 * j + 1] = (byte) queue[i];
+		}
+		return adresse;
+	}
+
+	/**
+	 * @return les groupes de 16 bits d'une partie d'adresse IPv6
+	 */
+	private static int[] groupes(String partie, String texte){
+		if (partie.isEmpty()) return new int[0];
+		String[] champs = partie.split(":", -1);
+		boolean ipv4 = champs[champs.length - 1].indexOf('.') >= 0;
+		int[] groupes = new int[champs.length + (ipv4 ? 1 : 0)];
+		for (int i = 0; i < champs.length; i++) {
+			String g = champs[i];
+			if (ipv4 && i == champs.length - 1) {
+				int adresse = RecordStore.parseAddress(g);
+				groupes[i] = adresse >>> 16;
+				groupes[i + 1] = adresse & 0xFFFF;
+				break;
+			}
+			if (g.isEmpty() || g.length() > 4) throw new IllegalArgumentException("IPv6 invalide : " + texte);
+			int valeur = 0;
+			for (int j = 0; j < g.length(); j++) {
+				char c = g.charAt(j); //chiffres hexadecimaux seulement, parseInt accepterait un signe
+				int chiffre = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10
+						: c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+				if (chiffre < 0) throw new IllegalArgumentException("IPv6 invalide : " + texte);
+				valeur = (valeur << 4) | chiffre;
+			}
+			groupes[i] = valeur;
+		}
+		return groupes;
+	}
+}
@@ -0,0 +1,409 @@
+package com.ets.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Table des enregistrements DNS gardee en memoire.
+ * Le fichier DNS ("hostname ip" ou "hostname TYPE donnees" par ligne, voir RecordData)
+ * est charge une seule fois au demarrage dans un index par etiquettes (NameIndex),
+ * insensible a la casse. Chaque nom a un ensemble d'enregistrements par type (A, AAAA,
+ * CNAME, MX, NS, SOA, TXT), conserves sous forme de RDATA prets a etre copies dans une reponse.
+ * Un nom "*.exemple.ca" du fichier est un joker : il repond pour les noms absents sous
+ * exemple.ca (RFC 4592).
+ *
+ * La recherche depend donc du nombre d'etiquettes du nom et ne fait aucun acces disque.
+ *
+ * Si le fichier est une table compacte (voir CompactZoneFile), il n'est pas charge :
+ * il est projete en memoire et consulte sur place, quelle que soit sa taille. Les ensembles
+ * lus dans la projection sont gardes dans une petite table indexee par la position de leur
+ * entree (MAX_VUES) : un nom souvent demande n'est lu qu'une fois et garde son modele de reponse.
+ *
+ * Les enregistrements appris d'un autre serveur depuis le demarrage ne sont pas dans
+ * l'index : ils sont servis par le ResponseCache, qui respecte leur TTL. Les derniers
+ * appris (au plus MAX_APPRIS) sont seulement retenus pour ne pas les enregistrer deux fois
+ * dans le fichier.
+ */
+public class RecordStore {
+	private static final int[] AUCUNE_ADRESSE = new int[0];
+	private static final int MAX_APPRIS = 65536; //enregistrements appris retenus, les plus anciens sont oublies
+	private static final int MAX_VUES = 4096; //ensembles de la table compacte gardes (puissance de 2)
+
+	/**
+	 * Un enregistrement appris, cle de la table des enregistrements deja enregistres
+	 */
+	private static final class Appris {
+		final String nom;
+		final int type;
+		final byte[] rdata;
+		final int hash;
+
+		Appris(String nom, int type, byte[] rdata) {
+			this.nom = nom;
+			this.type = type;
+			this.rdata = rdata;
+			this.hash = 31 * (31 * nom.hashCode() + type) + Arrays.hashCode(rdata);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Appris)) return false;
+			Appris a = (Appris) o;
+			return hash == a.hash && type == a.type && nom.equals(a.nom) && Arrays.equals(rdata, a.rdata);
+		}
+	}
+
+	/**
+	 * Les enregistrements d'un nom pour un type, avec le modele de reponse construit
+	 * par AnswerEncoder
+	 */
+	public static class RecordSet {
+		private final int type;
+		private final byte[][] rdatas;
+		private final int entree; //position de l'entree dans la table compacte, -1 pour la table en memoire
+		private volatile byte[] template = null;
+
+		RecordSet(int type, byte[][] rdatas) {
+			this(type, rdatas, -1);
+		}
+
+		RecordSet(int type, byte[][] rdatas, int entree) {
+			this.type = type;
+			this.rdatas = rdatas;
+			this.entree = entree;
+		}
+
+		/**
+		 * @return le type des enregistrements
+		 */
+		public int getType() {
+			return type;
+		}
+
+		/**
+		 * @return les RDATA (tableaux partages, ne doivent pas etre modifies)
+		 */
+		public byte[][] getRdatas() {
+			return rdatas;
+		}
+
+		/**
+		 * @return les adresses d'un ensemble de type A
+		 */
+		public int[] getAdresses() {
+			int[] adresses = new int[rdatas.length];
+			for (int i = 0; i < rdatas.length; i++) {
+				byte[] r = rdatas[i];
+				adresses[i] = ((r[0] & 0xFF) << 24) | ((r[1] & 0xFF) << 16) | ((r[2] & 0xFF) << 8) | (r[3] & 0xFF);
+			}
+			return adresses;
+		}
+
+		/**
+		 * @return le paquet de reponse modele, null s'il n'a pas encore ete construit
+		 */
+		public byte[] getTemplate() {
+			return template;
+		}
+
+		void setTemplate(byte[] template) {
+			this.template = template;
+		}
+	}
+
+	private final String filename; //fichier source de la table
+	//un ensemble par type, tableau remplace a chaque ajout
+	private final NameIndex<RecordSet[]> index = new NameIndex<RecordSet[]>();
+	private CompactZoneFile compact = null; //table binaire projetee, null pour un fichier texte
+	//ensembles deja lus dans la table compacte, par position d'entree (acces sans verrou : un ensemble est immuable)
+	private final RecordSet[] vues = new RecordSet[MAX_VUES];
+	//enregistrements appris deja confies a l'AnswerRecorder, du plus ancien au plus recent (sous le verrou)
+	private final Map<Appris, Boolean> apprises = new LinkedHashMap<Appris, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Appris, Boolean> plusAncien) {
+			return size() > MAX_APPRIS;
+		}
+	};
+
+	/**
+	 * Constructeur
+	 * @param filename : fichier DNS a charger
+	 */
+	public RecordStore(String filename){
+		this.filename = filename;
+	}
+
+	/**
+	 * @return file name
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Charge le fichier DNS dans l'index. Les lignes invalides sont ignorees.
+	 * Une table compacte est seulement projetee en memoire.
+	 * @return le nombre d'enregistrements charges (d'entrees pour une table compacte)
+	 * @throws IOException si le fichier ne peut etre lu
+	 */
+	public int load() throws IOException {
+		if (CompactZoneFile.estCompact(filename)) {
+			compact = CompactZoneFile.ouvrir(filename);
+			return compact.getEntryCount();
+		}
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String uneligne;
+			while ((uneligne = reader.readLine()) != null) {
+				RecordData.Ligne ligne;
+				try {
+					ligne = RecordData.parseLigne(uneligne);
+				} catch (IllegalArgumentException e) {
+					Log.warn("Ligne ignoree dans " + filename + " : " + uneligne);
+					continue;
+				}
+				if (ligne != null && add(ligne.nom, ligne.type, ligne.rdata, false)) count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Recherche les adresses associees a un hostname
+	 * @param hostname : nom a chercher (la casse est ignoree)
+	 * @return les adresses (jamais null, vide si le nom est inconnu).
+	 * Le tableau retourne est partage et ne doit pas etre modifie.
+	 */
+	public int[] lookup(String hostname){
+		RecordSet records = find(hostname, DNSMessage.TYPE_A);
+		return records == null || records.type != DNSMessage.TYPE_A ? AUCUNE_ADRESSE : records.getAdresses();
+	}
+
+	/**
+	 * Recherche les enregistrements d'un type associes a un hostname, ou a defaut au joker
+	 * qui le couvre. Si le nom n'en a pas mais est un alias, son CNAME est retourne
+	 * (RFC 1034 3.6.2).
+	 * @param hostname : nom a chercher (la casse est ignoree)
+	 * @param type : type demande
+	 * @return les enregistrements et le modele de reponse, null si le nom ou le type est inconnu
+	 */
+	public RecordSet find(String hostname, int type){
+		RecordSet[] sets = index.chercher(hostname);
+		if (sets == null) {
+			return compact == null ? null : findCompactOuJoker(normalize(hostname), type);
+		}
+		RecordSet cname = null;
+		for (RecordSet records : sets) {
+			if (records.type == type) return records;
+			if (records.type == DNSMessage.TYPE_CNAME) cname = records;
+		}
+		return cname;
+	}
+
+	/**
+	 * @param hostname : nom a chercher (la casse est ignoree)
+	 * @return true si le nom existe dans la table, avec des enregistrements d'un type
+	 * quelconque, comme parent d'autres noms ou parce qu'un joker le couvre. Sert a
+	 * distinguer NXDOMAIN de NODATA.
+	 */
+	public boolean existe(String hostname){
+		if (index.contient(hostname) || index.chercher(hostname) != null) return true;
+		if (compact == null) return false;
+		String cle = normalize(hostname);
+		if (existeCompact(cle, 0, false)) return true;
+		for (int p = cle.indexOf('.'); p >= 0; p = cle.indexOf('.', p + 1)) {
+			if (existeCompact(cle, p, true)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true si la table compacte a une entree d'un type quelconque pour ce nom ou ce
+	 * joker (voir CompactZoneFile.chercher)
+	 */
+	private boolean existeCompact(String cle, int debut, boolean joker){
+		for (int type : RecordData.TYPES) {
+			if (compact.chercher(cle, debut, joker, type) >= 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return les enregistrements d'un nom de la table compacte, ou du joker du plus long
+	 * parent qui en a un
+	 */
+	private RecordSet findCompactOuJoker(String cle, int type){
+		RecordSet records = findCompact(cle, 0, false, type);
+		for (int p = cle.indexOf('.'); records == null && p >= 0; p = cle.indexOf('.', p + 1)) {
+			records = findCompact(cle, p, true, type);
+		}
+		return records;
+	}
+
+	/**
+	 * @return les enregistrements d'un type (ou le CNAME) d'un nom ou d'un joker de la table
+	 * compacte (voir CompactZoneFile.chercher)
+	 */
+	private RecordSet findCompact(String cle, int debut, boolean joker, int type){
+		int entree = compact.chercher(cle, debut, joker, type);
+		if (entree < 0 && type != DNSMessage.TYPE_CNAME) {
+			entree = compact.chercher(cle, debut, joker, DNSMessage.TYPE_CNAME);
+			type = DNSMessage.TYPE_CNAME;
+		}
+		if (entree < 0) return null;
+		//un ensemble deja lu est repris tel quel, avec son modele de reponse
+		int i = ((entree * 0x9E3779B9) >>> 20) & (MAX_VUES - 1);
+		RecordSet vue = vues[i];
+		if (vue != null && vue.entree == entree) return vue;
+		byte[][] rdatas = compact.rdatas(entree);
+		if (rdatas.length == 0) return null;
+		vue = new RecordSet(type, rdatas, entree);
+		vues[i] = vue;
+		return vue;
+	}
+
+	/**
+	 * @return true si la table est un fichier compact, en lecture seule
+	 */
+	public boolean isCompact(){
+		return compact != null;
+	}
+
+	/**
+	 * Ajoute une adresse IPv4 a un hostname si elle n'y est pas deja.
+	 * @param hostname : NS (ex google.com)
+	 * @param adresse : adresse IPv4 sous forme d'entier
+	 * @param appris : true si l'adresse vient de la reponse d'un autre serveur DNS
+	 * @return true si l'adresse est nouvelle
+	 */
+	public boolean add(String hostname, int adresse, boolean appris){
+		byte[] rdata = { (byte) (adresse >>> 24), (byte) (adresse >>> 16), (byte) (adresse >>> 8), (byte) adresse };
+		return add(hostname, DNSMessage.TYPE_A, rdata, appris);
+	}
+
+	/**
+	 * Ajoute un enregistrement a un hostname s'il n'y est pas deja.
+	 * Les enregistrements d'un nom sont remplaces (copie a l'ecriture), les lecteurs
+	 * concurrents voient donc toujours une liste complete. Le modele de reponse
+	 * du type est oublie. Un enregistrement appris n'est pas ajoute a l'index, il est
+	 * seulement retenu pour savoir qu'il a deja ete vu.
+	 * @param hostname : NS (ex google.com)
+	 * @param type : type de l'enregistrement
+	 * @param rdata : RDATA de l'enregistrement (noms non compresses)
+	 * @param appris : true si l'enregistrement vient de la reponse d'un autre serveur DNS
+	 * @return true si l'enregistrement est nouveau (pour un appris : absent de la table et
+	 * pas deja appris recemment)
+	 */
+	public synchronized boolean add(String hostname, int type, byte[] rdata, boolean appris){
+		String cle = normalize(hostname);
+		RecordSet[] sets = index.get(cle);
+		int i = 0;
+		while (sets != null && i < sets.length && sets[i].type != type) i++;
+		if (sets != null && i < sets.length) {
+			for (byte[] r : sets[i].rdatas) {
+				if (Arrays.equals(r, rdata)) return false;
+			}
+		}
+		if (appris) return apprises.put(new Appris(cle, type, rdata), Boolean.TRUE) == null;
+
+		if (sets == null) {
+			index.put(cle, new RecordSet[] { new RecordSet(type, new byte[][] { rdata }) });
+			return true;
+		}
+		RecordSet[] nouveaux = Arrays.copyOf(sets, i < sets.length ? sets.length : sets.length + 1);
+		if (i == sets.length) {
+			nouveaux[i] = new RecordSet(type, new byte[][] { rdata });
+		} else {
+			byte[][] actuels = sets[i].rdatas;
+			byte[][] rdatas = Arrays.copyOf(actuels, actuels.length + 1);
+			rdatas[actuels.length] = rdata;
+			nouveaux[i] = new RecordSet(type, rdatas);
+		}
+		index.put(cle, nouveaux);
+		return true;
+	}
+
+	/**
+	 * Reprend les enregistrements appris d'une autre table qui ne sont pas dans celle-ci.
+	 * Utilise lors d'un rechargement, avant la mise en service de la nouvelle table.
+	 * @param ancienne : table remplacee
+	 */
+	void reprendreApprises(RecordStore ancienne){
+		Appris[] anciennes;
+		synchronized (ancienne) {
+			anciennes = ancienne.apprises.keySet().toArray(new Appris[0]);
+		}
+		for (Appris a : anciennes) {
+			add(a.nom, a.type, a.rdata, true);
+		}
+	}
+
+	/**
+	 * @return le nombre de noms dans l'index
+	 */
+	public int size(){
+		return index.size();
+	}
+
+	/**
+	 * Normalise un nom de domaine pour l'utiliser comme cle
+	 * @param hostname : nom tel que recu ou lu dans le fichier
+	 * @return le nom en minuscules, sans point final
+	 */
+	static String normalize(String hostname){
+		String nom = hostname.toLowerCase(Locale.ROOT);
+		if (nom.endsWith(".")) nom = nom.substring(0, nom.length() - 1);
+		return nom;
+	}
+
+	/**
+	 * Convertit une adresse IPv4 textuelle (a.b.c.d) en entier (ordre reseau)
+	 * @param adresseIP : adresse a convertir
+	 * @return l'adresse sous forme d'entier
+	 * @throws IllegalArgumentException si l'adresse est invalide
+	 */
+	static int parseAddress(String adresseIP){
+		int adresse = 0, octet = 0, parties = 0, chiffres = 0;
+		for (int i = 0; i < adresseIP.length(); i++) {
+			char c = adresseIP.charAt(i);
+			if (c == '.') {
+				if (chiffres == 0 || ++parties > 3)
+					throw new IllegalArgumentException("Adresse invalide : " + adresseIP);
+				adresse = (adresse << 8) | octet;
+				octet = 0;
+				chiffres = 0;
+			} else if (c >= '0' && c <= '9' && chiffres < 3) {
+				octet = octet * 10 + (c - '0');
+				chiffres++;
+				if (octet > 255)
+					throw new IllegalArgumentException("Adresse invalide : " + adresseIP);
+			} else {
+				throw new IllegalArgumentException("Adresse invalide : " + adresseIP);
+			}
+		}
+		if (parties != 3 || chiffres == 0)
+			throw new IllegalArgumentException("Adresse invalide : " + adresseIP);
+		return (adresse << 8) | octet;
+	}
+
+	/**
+	 * @param adresse : adresse IPv4 sous forme d'entier
+	 * @return l'adresse au format a.b.c.d
+	 */
+	static String formatAddress(int adresse){
+		return ((adresse >>> 24) & 0xFF) + "." + ((adresse >>> 16) & 0xFF) + "."
+				+ ((adresse >>> 8) & 0xFF) + "." + (adresse & 0xFF);
+	}
+}
@@ -0,0 +1,216 @@
+package com.ets.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache des reponses recues de l'autre serveur DNS, en respectant leur TTL.
+ *
+ * Une reponse est gardee telle que recue, avec la position et la valeur du TTL de
+ * chacun de ses enregistrements. Lorsqu'elle est servie, les TTL sont diminues du temps
+ * passe dans le cache : le client voit donc la duree de vie restante et non une valeur fixe.
+ * L'entree expire avec le plus petit TTL de ses enregistrements.
+ *
+ * Les reponses negatives (NXDOMAIN, ou NOERROR sans reponse = NODATA) sont aussi gardees,
+ * pour la duree indiquee par le SOA de la section autorite (RFC 2308 section 5).
+ *
+ * La taille du cache est bornee; quand il est plein, l'entree a remplacer est choisie par
+ * l'algorithme CLOCK (une seconde chance pour les entrees lues depuis le dernier passage).
+ */
+public class ResponseCache {
+	public final static int DEFAULT_CAPACITY = 10000;
+	private final static long MAX_TTL = 86400; //une journee
+	private final static long MAX_NEGATIVE_TTL = 10800; //3 heures (RFC 2308 section 5)
+
+	/**
+	 * Une reponse gardee en cache
+	 */
+	private static class Entry {
+		final String key;
+		final byte[] message;
+		final int[] ttlOffsets; //position du TTL de chaque enregistrement
+		final long[] ttls; //TTL d'origine de chaque enregistrement
+		final long storedAt;
+		final long expiresAt;
+		volatile boolean reference = true; //bit de seconde chance de CLOCK
+		int slot; //position dans le tableau de l'aiguille
+
+		Entry(String key, byte[] message, int[] ttlOffsets, long[] ttls, long storedAt, long ttl) {
+			this.key = key;
+			this.message = message;
+			this.ttlOffsets = ttlOffsets;
+			this.ttls = ttls;
+			this.storedAt = storedAt;
+			this.expiresAt = storedAt + ttl * 1000;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> index;
+	private final Entry[] clock; //entrees dans l'ordre de parcours de l'aiguille
+	private int hand = 0;
+	private int size = 0;
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+	/**
+	 * Constructeur
+	 * @param capacity : nombre max de reponses gardees
+	 */
+	public ResponseCache(int capacity){
+		if (capacity < 1) throw new IllegalArgumentException("La capacite doit etre positive");
+		this.index = new ConcurrentHashMap<String, Entry>(capacity * 4 / 3 + 1);
+		this.clock = new Entry[capacity];
+	}
+
+	/**
+	 * @return la cle d'une question
+	 */
+	private static String key(String name, int qtype, int qclass){
+		return RecordStore.normalize(name) + '/' + qtype + '/' + qclass;
+	}
+
+	/**
+	 * Ecrit la reponse en cache pour une question, avec les TTL mis a jour.
+	 * @param name : nom de la question
+	 * @param query : la requete du client, deja lue (identifiant, RD et casse du nom sont repris)
+	 * @param out : tampon de destination, ecrit a partir de la position 0
+	 * @return la taille de la reponse, -1 si la question n'est pas en cache
+	 */
+	public int get(String name, DNSMessage query, byte[] out){
+		Entry e = index.get(key(name, query.getQtype(), query.getQclass()));
+		long now = System.currentTimeMillis();
+		if (e == null || e.expiresAt <= now || e.message.length > out.length) {
+			misses.increment();
+			return -1;
+		}
+		e.reference = true;
+		hits.increment();
+
+		byte[] in = query.getBuffer();
+		System.arraycopy(e.message, 0, out, 0, e.message.length);
+		out[0] = in[0];
+		out[1] = in[1];
+		out[2] = (byte) ((out[2] & 0xFE) | (in[2] & 0x01));
+		int questionEnd = query.getQuestionEnd();
+		if (questionEnd <= e.message.length && e.message[questionEnd - 5] == 0) {
+			System.arraycopy(in, DNSMessage.HEADER_SIZE, out, DNSMessage.HEADER_SIZE, questionEnd - 4 - DNSMessage.HEADER_SIZE);
+		}
+
+		long ecoule = (now - e.storedAt) / 1000;
+		for (int i = 0; i < e.ttlOffsets.length; i++) {
+			long ttl = Math.max(0, e.ttls[i] - ecoule);
+			int o = e.ttlOffsets[i];
+			out[o] = (byte) (ttl >>> 24);
+			out[o + 1] = (byte) (ttl >>> 16);
+			out[o + 2] = (byte) (ttl >>> 8);
+			out[o + 3] = (byte) ttl;
+		}
+		return e.message.length;
+	}
+
+	/**
+	 * Garde une reponse de l'autre serveur DNS. Les reponses tronquees, en erreur
+	 * (autre que NXDOMAIN), de TTL nul ou negatives sans SOA ne sont pas gardees.
+	 * @param name : nom de la question
+	 * @param answer : la reponse, deja lue
+	 * @return true si la reponse a ete gardee
+	 */
+	public boolean put(String name, DNSMessage answer){
+		int rcode = answer.getRcode();
+		if (answer.isTruncated() || (rcode != DNSMessage.RCODE_NOERROR && rcode != DNSMessage.RCODE_NXDOMAIN))
+			return false;
+		boolean negative = rcode == DNSMessage.RCODE_NXDOMAIN || answer.getAncount() == 0;
+
+		int ancount = answer.getAncount(), nscount = answer.getNscount();
+		int total = ancount + nscount + answer.getArcount();
+		int[] offsets = new int[total];
+		long[] ttls = new long[total];
+		int n = 0;
+		long minTtl = MAX_TTL, negativeTtl = -1;
+
+		int rr = answer.firstRecord();
+		for (int i = 0; i < total; i++, rr = answer.nextRecord(rr)) {
+			if (rr < 0 || answer.rrDataOffset(rr) < 0) return false;
+			int type = answer.rrType(rr);
+			if (type == DNSMessage.TYPE_OPT) continue; //le champ TTL de OPT contient des drapeaux
+			long ttl = answer.rrTtl(rr);
+			offsets[n] = answer.rrTtlOffset(rr);
+			ttls[n++] = ttl;
+			minTtl = Math.min(minTtl, ttl);
+			if (negative && type == DNSMessage.TYPE_SOA && i >= ancount && i < ancount + nscount
+					&& answer.rrDataLength(rr) >= 22) {
+				//MINIMUM est le dernier champ du RDATA du SOA
+				long minimum = answer.u32(answer.rrDataOffset(rr) + answer.rrDataLength(rr) - 4);
+				negativeTtl = Math.min(Math.min(ttl, minimum), MAX_NEGATIVE_TTL);
+			}
+		}
+		long ttl = negative ? negativeTtl : minTtl;
+		if (ttl <= 0) return false;
+
+		byte[] message = new byte[answer.getLength()];
+		System.arraycopy(answer.getBuffer(), 0, message, 0, message.length);
+		if (n < total) {
+			int[] o = new int[n];
+			long[] t = new long[n];
+			System.arraycopy(offsets, 0, o, 0, n);
+			System.arraycopy(ttls, 0, t, 0, n);
+			offsets = o;
+			ttls = t;
+		}
+		ajouter(new Entry(key(name, answer.getQtype(), answer.getQclass()), message, offsets, ttls,
+				System.currentTimeMillis(), ttl));
+		return true;
+	}
+
+	/**
+	 * Place une entree dans le cache, en remplacant au besoin celle choisie par l'aiguille
+	 */
+	private synchronized void ajouter(Entry e){
+		Entry ancienne = index.put(e.key, e);
+		if (ancienne != null) {
+			//meme question : la nouvelle reponse prend la place de l'ancienne
+			e.slot = ancienne.slot;
+			clock[e.slot] = e;
+			return;
+		}
+		if (size < clock.length) {
+			e.slot = size;
+			clock[size++] = e;
+			return;
+		}
+		long now = System.currentTimeMillis();
+		while (true) {
+			Entry candidate = clock[hand];
+			if (candidate.reference && candidate.expiresAt > now) {
+				candidate.reference = false;
+				hand = (hand + 1) % clock.length;
+				continue;
+			}
+			index.remove(candidate.key, candidate);
+			e.slot = hand;
+			clock[hand] = e;
+			hand = (hand + 1) % clock.length;
+			return;
+		}
+	}
+
+	/**
+	 * @return le nombre de questions servies par le cache
+	 */
+	public long getHits(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return le nombre de questions absentes ou expirees
+	 */
+	public long getMisses(){
+		return misses.sum();
+	}
+
+	/**
+	 * @return le nombre de reponses gardees
+	 */
+	public int size(){
+		return index.size();
+	}
+}
@@ -2,6 +2,7 @@ package com.ets.server;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 /**
  * Application principale qui lance les autres processus
@@ -21,10 +22,32 @@ public class ServeurDNS {
 
         if (args.length == 0) {
             System.out.println("Usage: "
-                    +"[addresse DNS] <Fichier DNS> <TrueFalse/Redirection seulement>");
+                    +"[addresse DNS[:port],...] <Fichier DNS> <TrueFalse/Redirection seulement>");
             System.out.println("Pour lister la table: "
                     +"showtable <Fichier DNS>");
+            System.out.println("Pour convertir la table en fichier compact: "
+                    +"compile <Fichier DNS texte> <Fichier compact>");
+            System.out.println("Pour lister une capture: "
+                    +"capture <Fichier de capture>");
+            System.out.println("Pour rejouer une capture: "
+                    +"replay <Fichier de capture> <adresse DNS[:port]> [vitesse, 0 = sans attente]");
             System.out.println("Pour lancer par defaut, tapper : default");
+            System.out.println("Options (java -D...): dns.workers=<nb threads>, dns.queue=<taille file>,");
+            System.out.println("                      dns.engine=<socket|nio>, dns.sockets=<nb sockets SO_REUSEPORT>,");
+            System.out.println("                      dns.cache=<nb reponses en cache, 0 = aucun>,");
+            System.out.println("                      dns.reload=<true|false> (rechargement du fichier DNS modifie),");
+            System.out.println("                      dns.upstream.timeout=<ms avant un nouvel essai>,");
+            System.out.println("                      dns.upstream.retries=<nb nouveaux essais>,");
+            System.out.println("                      dns.upstream.sockets=<nb sockets de redirection, 0 = port d'ecoute>,");
+            System.out.println("                      dns.tcp=<true|false>, dns.tcp.connections=<nb max>,");
+            System.out.println("                      dns.tcp.idle=<ms avant la fermeture d'une connexion inactive>,");
+            System.out.println("                      dns.edns.size=<taille UDP annoncee, 512 a 4096>,");
+            System.out.println("                      dns.zones=<zones dont le serveur fait autorite, separees par des virgules>,");
+            System.out.println("                      dns.threads=<pool|virtual> (un thread virtuel par requete, Java 21),");
+            System.out.println("                      dns.metrics.port=<port HTTP local des statistiques Prometheus, 0 = aucun>,");
+            System.out.println("                      dns.log.level=<debug|info|warn|error|off> (detail de chaque requete en debug),");
+            System.out.println("                      dns.log.sample=<n> (en debug, une requete sur n est detaillee),");
+            System.out.println("                      dns.capture=<fichier> (copie des requetes et reponses), dns.capture.size=<Mo>");
             System.exit(1);
         }
 
@@ -59,6 +82,7 @@ public class ServeurDNS {
                 UDPR.setRedirectionSeulement(false);
 
                 // et on lance le thread
+                appliquerOptions(UDPR);
                 UDPR.start();
             }
             else{
@@ -80,8 +104,16 @@ public class ServeurDNS {
                             e.printStackTrace();
                         }
                     }
-                    QueryFinder QF = new QueryFinder(args[1]);
-                    QF.listCorrespondingTable();
+                    if (CompactZoneFile.estCompact(args[1])) {
+                        try {
+                            CompactZoneFile.ouvrir(args[1]).lister(System.out);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    } else {
+                        QueryFinder QF = new QueryFinder(args[1]);
+                        QF.listCorrespondingTable();
+                    }
                 }
                 else if (args.length < 2){
                     System.out.println("vous n'avez pas indique le nom du fichier");
@@ -89,6 +121,45 @@ public class ServeurDNS {
                     System.out.println("vous avez indiquez trop d'arguments");
                 }
             }
+            else if(args[0].equals("compile")){ // cas ou les arguments sont: compile texte compact
+                if (args.length == 3) {
+                    try {
+                        long debut = System.currentTimeMillis();
+                        int n = CompactZoneFile.convertir(args[1], args[2]);
+                        System.out.println(n + " entrees ecrites dans " + args[2]
+                                + " en " + (System.currentTimeMillis() - debut) + " ms");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                else
+                    System.out.println("Usage: compile <Fichier DNS texte> <Fichier compact>");
+            }
+            else if(args[0].equals("capture")){ // cas ou les arguments sont: capture fichier
+                if (args.length == 2) {
+                    try {
+                        long n = CaptureReplay.lister(args[1], System.out);
+                        System.out.println(n + " paquets");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                else
+                    System.out.println("Usage: capture <Fichier de capture>");
+            }
+            else if(args[0].equals("replay")){ // cas ou les arguments sont: replay fichier serveur [vitesse]
+                if (args.length == 3 || args.length == 4) {
+                    try {
+                        InetSocketAddress serveur = Forwarder.parseServeurs(args[2], 53)[0];
+                        double vitesse = args.length == 4 ? Double.parseDouble(args[3]) : 1;
+                        CaptureReplay.rejouer(args[1], serveur, vitesse, System.out);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                else
+                    System.out.println("Usage: replay <Fichier de capture> <adresse DNS[:port]> [vitesse]");
+            }
             else{
                 if (args.length == 3) { // cas ou les arguments sont: [IPserveurDNS] [cacheDNS] [redirectionOuNon]
                     UDPR.setSERVER_DNS(args[0]);
@@ -111,6 +182,7 @@ public class ServeurDNS {
                         UDPR.setRedirectionSeulement(true);
                     }
                     // et on lance le thread
+                    appliquerOptions(UDPR);
                     UDPR.start();
                 }
                 else
@@ -118,5 +190,47 @@ public class ServeurDNS {
             }
         }
     }
-}
 
+    /**
+     * Applique les options passees en proprietes systeme (-Dnom=valeur)
+     * @param UDPR : le serveur a configurer
+     */
+    private static void appliquerOptions(UDPReceiver UDPR) {
+        String logLevel = System.getProperty("dns.log.level");
+        if (logLevel != null) Log.setNiveau(Log.parseNiveau(logLevel));
+        Integer logSample = Integer.getInteger("dns.log.sample");
+        if (logSample != null) Log.setEchantillon(logSample);
+        Integer workers = Integer.getInteger("dns.workers");
+        if (workers != null) UDPR.setWorkerCount(workers);
+        Integer queue = Integer.getInteger("dns.queue");
+        if (queue != null) UDPR.setQueueCapacity(queue);
+        UDPR.setNio("nio".equals(System.getProperty("dns.engine")));
+        Integer sockets = Integer.getInteger("dns.sockets");
+        if (sockets != null) UDPR.setSocketCount(sockets);
+        Integer cache = Integer.getInteger("dns.cache");
+        if (cache != null) UDPR.setCacheCapacity(cache);
+        UDPR.setRechargement(!"false".equals(System.getProperty("dns.reload")));
+        Long timeout = Long.getLong("dns.upstream.timeout");
+        if (timeout != null) UDPR.setUpstreamTimeout(timeout);
+        Integer retries = Integer.getInteger("dns.upstream.retries");
+        if (retries != null) UDPR.setUpstreamRetries(retries);
+        Integer upstreamSockets = Integer.getInteger("dns.upstream.sockets");
+        if (upstreamSockets != null) UDPR.setUpstreamSockets(upstreamSockets);
+        UDPR.setTcp(!"false".equals(System.getProperty("dns.tcp")));
+        Integer tcpConnections = Integer.getInteger("dns.tcp.connections");
+        if (tcpConnections != null) UDPR.setTcpConnections(tcpConnections);
+        Integer tcpIdle = Integer.getInteger("dns.tcp.idle");
+        if (tcpIdle != null) UDPR.setTcpIdleTimeout(tcpIdle);
+        Integer ednsSize = Integer.getInteger("dns.edns.size");
+        if (ednsSize != null) UDPR.setEdnsUdpSize(ednsSize);
+        String zones = System.getProperty("dns.zones");
+        if (zones != null) UDPR.setZones(zones);
+        UDPR.setVirtualThreads("virtual".equals(System.getProperty("dns.threads")));
+        Integer metricsPort = Integer.getInteger("dns.metrics.port");
+        if (metricsPort != null) UDPR.setMetricsPort(metricsPort);
+        String capture = System.getProperty("dns.capture");
+        if (capture != null) UDPR.setCaptureFile(capture);
+        Integer captureSize = Integer.getInteger("dns.capture.size");
+        if (captureSize != null) UDPR.setCaptureSize(captureSize);
+    }
+}
@@ -0,0 +1,184 @@
+package com.ets.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reception des requetes DNS sur TCP (RFC 1035 4.2.2, RFC 7766).
+ *
+ * Chaque message est precede de sa longueur sur 2 octets. Un client peut envoyer plusieurs
+ * requetes a la suite sur une meme connexion sans attendre les reponses : chaque requete est
+ * confiee aux workers des sa lecture et les reponses sont ecrites dans l'ordre ou elles sont
+ * pretes, qui n'est pas forcement celui des requetes. Le traitement est celui des requetes
+ * UDP (QueryProcessor); la connexion sert de PacketSink pour les reponses, y compris celles
+ * qui arrivent plus tard d'un serveur de redirection.
+ *
+ * Le nombre de connexions simultanees est limite; une connexion sans requete ni reponse
+ * pendant le delai d'inactivite est fermee.
+ */
+public class TCPServer implements Runnable {
+	public final static int DEFAULT_MAX_CONNECTIONS = 128;
+	public final static int DEFAULT_IDLE_TIMEOUT_MS = 10000; //RFC 7766 section 6.2.3
+
+	private final ServerSocket serveur;
+	private final QueryProcessor processor;
+	private final Executor workers;
+	private final Semaphore connexions;
+	private final int idleTimeout;
+	private volatile boolean stop = false;
+
+	/**
+	 * Constructeur, ouvre le port d'ecoute
+	 * @param port : port de reception
+	 * @param processor : traitement des requetes
+	 * @param workers : threads qui traitent les requetes lues
+	 * @param maxConnexions : nombre max de connexions ouvertes en meme temps
+	 * @param idleTimeout : delai d'inactivite avant la fermeture d'une connexion (ms)
+	 * @throws IOException si le port ne peut etre ouvert
+	 */
+	public TCPServer(int port, QueryProcessor processor, Executor workers, int maxConnexions, int idleTimeout)
+			throws IOException {
+		if (maxConnexions < 1 || idleTimeout < 1)
+			throw new IllegalArgumentException("maxConnexions et idleTimeout doivent etre positifs");
+		this.serveur = new ServerSocket();
+		this.serveur.setReuseAddress(true); //redemarrage possible malgre les connexions en TIME_WAIT
+		this.serveur.bind(new InetSocketAddress(port));
+		this.processor = processor;
+		this.workers = workers;
+		this.connexions = new Semaphore(maxConnexions);
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Accepte les connexions jusqu'a l'arret
+	 */
+	public void run() {
+		Log.info("Serveur DNS (TCP) en attente sur le port: " + serveur.getLocalPort());
+		while (!stop) {
+			Socket socket;
+			try {
+				socket = serveur.accept();
+			} catch (IOException e) {
+				if (!stop) Log.error("Connexion TCP non acceptee", e);
+				continue;
+			}
+			if (!connexions.tryAcquire()) {
+				if (Log.isDebug()) Log.debug("Trop de connexions TCP, " + socket.getRemoteSocketAddress() + " refusee");
+				fermer(socket);
+				continue;
+			}
+			try {
+				Thread t = new Thread(new Connexion(socket), "dns-tcp-" + socket.getPort());
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				connexions.release();
+				fermer(socket);
+				Log.error("Connexion TCP non traitee", e);
+			}
+		}
+	}
+
+	private static void fermer(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//deja fermee
+		}
+	}
+
+	/**
+	 * Une connexion d'un client : lit les requetes et ecrit les reponses
+	 */
+	private class Connexion implements Runnable, PacketSink {
+		private final Socket socket;
+		private final InetSocketAddress client;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private volatile long derniereActivite = System.currentTimeMillis();
+
+		Connexion(Socket socket) throws IOException {
+			this.socket = socket;
+			this.client = (InetSocketAddress) socket.getRemoteSocketAddress();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(idleTimeout);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		public void run() {
+			try {
+				while (!stop) {
+					int length;
+					try {
+						length = in.readUnsignedShort();
+					} catch (SocketTimeoutException e) {
+						//une reponse redirigee peut encore etre en cours d'ecriture
+						if (System.currentTimeMillis() - derniereActivite < idleTimeout) continue;
+						break;
+					}
+					final byte[] data = new byte[length];
+					in.readFully(data);
+					derniereActivite = System.currentTimeMillis();
+					try {
+						workers.execute(new Runnable() {
+							public void run() {
+								processor.process(data, data.length, client, Connexion.this);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						if (Log.isDebug()) Log.debug("Requete TCP de " + client + " abandonnee");
+					}
+				}
+			} catch (EOFException e) {
+				//le client a ferme la connexion
+			} catch (IOException e) {
+				if (!socket.isClosed() && Log.isDebug()) Log.debug("Connexion TCP avec " + client + " interrompue : " + e.getMessage());
+			} finally {
+				fermer(socket);
+				connexions.release();
+			}
+		}
+
+		/**
+		 * Ecrit un message precede de sa longueur. Les reponses de plusieurs workers peuvent
+		 * etre ecrites en meme temps, chaque message est donc ecrit d'un seul bloc.
+		 */
+		public void send(byte[] data, int offset, int length, InetSocketAddress destination) throws IOException {
+			if (length > 0xFFFF) throw new IOException("Message trop long pour TCP : " + length);
+			synchronized (out) {
+				out.writeShort(length);
+				out.write(data, offset, length);
+				out.flush();
+			}
+			derniereActivite = System.currentTimeMillis();
+		}
+
+		public boolean isDatagram() {
+			return false;
+		}
+	}
+
+	/**
+	 * Ferme le port d'ecoute
+	 */
+	public void arreter() {
+		stop = true;
+		try {
+			serveur.close();
+		} catch (IOException e) {
+			Log.error("Fermeture du port TCP impossible", e);
+		}
+	}
+}
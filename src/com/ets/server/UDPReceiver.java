@@ -1,13 +1,18 @@
 package com.ets.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Cette classe permet la reception d'un paquet UDP sur le port de reception
@@ -58,20 +63,34 @@ public class UDPReceiver extends Thread {
 	 * ANCount, NSCount, ARCount : nombre d�entrees dans les champs �Reponse�, Autorite,  Additionnel.
 	 */
 
-	protected final static int BUF_SIZE = 1024;
-	protected String SERVER_DNS = null;//serveur de redirection (ip)
+	protected final static int BUF_SIZE = Edns.MAX_UDP_SIZE; //les reponses EDNS des autres serveurs depassent 512 octets
+	protected String SERVER_DNS = null;//serveurs de redirection (ip[:port], separes par des virgules)
 	protected int portRedirect = 53; // port  de redirection (par defaut)
 	protected int port; // port de r�ception
 	private String adrIP = null; //bind ip d'ecoute
 	private String DomainName = "none";
 	private String DNSFile = null;
 	private boolean RedirectionSeulement = false;
+	private boolean nio = false; //moteur DatagramChannel/Selector au lieu du DatagramSocket bloquant
+	private int socketCount = 1; //nombre de canaux NIO ouverts sur le port (SO_REUSEPORT)
+	private int cacheCapacity = ResponseCache.DEFAULT_CAPACITY; //reponses redirigees gardees, 0 = pas de cache
+	private boolean rechargement = true; //rechargement de la table quand le fichier DNS change
+	private long upstreamTimeout = Forwarder.DEFAULT_TIMEOUT_MS; //attente d'un serveur avant un nouvel essai
+	private int upstreamRetries = Forwarder.DEFAULT_RETRIES;
+	private int upstreamSockets = 4; //sockets reserves aux serveurs de redirection, 0 = port d'ecoute
+	private boolean tcp = true; //ecoute aussi en TCP sur le meme port
+	private int tcpConnections = TCPServer.DEFAULT_MAX_CONNECTIONS;
+	private int tcpIdleTimeout = TCPServer.DEFAULT_IDLE_TIMEOUT_MS;
+	private int ednsUdpSize = Edns.DEFAULT_UDP_SIZE; //taille max des reponses UDP annoncee aux clients EDNS
+	private Zones zones = null; //zones dont le serveur fait autorite
+	private boolean virtuel = false; //un thread (virtuel si possible) par requete au lieu du pool de workers
+	private int metricsPort = 0; //port HTTP local des statistiques (Prometheus), 0 = pas de statistiques
+	private String captureFile = null; //fichier de capture des paquets des clients, null = pas de capture
+	private int captureSize = PacketCapture.DEFAULT_SIZE_MB;
 	
-	private class ClientInfo { //quick container
-		public String client_ip = null;
-		public int client_port = 0;
-	};
-	private HashMap<Integer, ClientInfo> Clients = new HashMap<Integer, ClientInfo>();
+	private int workerCount = Runtime.getRuntime().availableProcessors(); //nombre de threads de traitement
+	private int queueCapacity = 1024; //paquets en attente d'un worker
+	private volatile Metrics metrics = null; //compteurs du QueryProcessor, y compris les paquets abandonnes par les workers
 	
 	private boolean stop = false;
 
@@ -93,297 +112,421 @@ public class UDPReceiver extends Thread {
 		this.RedirectionSeulement = b;
 	}
 
-	public String gethostNameFromPacket() {
-		return DomainName;
+	/**
+	 * @param b : true pour utiliser le moteur NIO (NioUDPServer)
+	 */
+	public void setNio(boolean b) {
+		this.nio = b;
 	}
 
-	public String getAdrIP() {
-		return adrIP;
+	/**
+	 * Ouvre plusieurs canaux sur le meme port (SO_REUSEPORT), chacun servi par sa propre
+	 * boucle NIO. Plus d'un canal implique le moteur NIO.
+	 * @param n : nombre de canaux, typiquement le nombre de coeurs
+	 */
+	public void setSocketCount(int n) {
+		if (n < 1) throw new IllegalArgumentException("Il faut au moins un socket");
+		this.socketCount = n;
 	}
 
-	private void setAdrIP(String ip) {
-		adrIP = ip;
+	/**
+	 * @param n : nombre max de reponses gardees dans le cache, 0 pour le desactiver
+	 */
+	public void setCacheCapacity(int n) {
+		if (n < 0) throw new IllegalArgumentException("La taille du cache ne peut etre negative");
+		this.cacheCapacity = n;
 	}
 
-	public String getSERVER_DNS() {
-		return SERVER_DNS;
+	/**
+	 * @param b : true pour recharger la table lorsque le fichier DNS est modifie (ZoneWatcher)
+	 */
+	public void setRechargement(boolean b) {
+		this.rechargement = b;
 	}
 
-	public void setSERVER_DNS(String server_dns) {
-		this.SERVER_DNS = server_dns;
+	/**
+	 * @param millis : attente de la reponse d'un serveur de redirection avant un nouvel essai
+	 */
+	public void setUpstreamTimeout(long millis) {
+		if (millis <= 0) throw new IllegalArgumentException("Le delai doit etre positif");
+		this.upstreamTimeout = millis;
 	}
 
-	/*
-	 * Méthode pour rediriger vers un autre Server DNS
+	/**
+	 * @param n : nombre de nouveaux essais (sur un autre serveur) apres le premier envoi
 	 */
-	public void redirectionRequete(UDPSender nouvelleRequete, DatagramSocket socket, DatagramPacket packet) throws IOException{
-
-		//On set l'adresse du server nouveau server DNS
-		//nouvelleRequete.setDest_ip(SERVER_DNS);
-		//nouvelleRequete.setDest_port(portRedirect);
-		//nouvelleRequete.setSendSocket(socket);
-		nouvelleRequete.SendPacketNow(packet);
+	public void setUpstreamRetries(int n) {
+		if (n < 0) throw new IllegalArgumentException("Le nombre d'essais ne peut etre negatif");
+		this.upstreamRetries = n;
+	}
 
+	/**
+	 * @param n : nombre de sockets (ports aleatoires) reserves aux echanges avec les serveurs
+	 * de redirection, 0 pour rediriger par le port d'ecoute
+	 */
+	public void setUpstreamSockets(int n) {
+		if (n < 0) throw new IllegalArgumentException("Le nombre de sockets ne peut etre negatif");
+		this.upstreamSockets = n;
 	}
 
+	/**
+	 * @param b : true pour recevoir aussi les requetes en TCP sur le port d'ecoute
+	 */
+	public void setTcp(boolean b) {
+		this.tcp = b;
+	}
 
-	public void setDNSFile(String filename) {
-		DNSFile = filename;
+	/**
+	 * @param n : nombre max de connexions TCP ouvertes en meme temps
+	 */
+	public void setTcpConnections(int n) {
+		if (n < 1) throw new IllegalArgumentException("Il faut au moins une connexion");
+		this.tcpConnections = n;
 	}
 
-	public void run() {
-		try {
+	/**
+	 * @param millis : delai d'inactivite avant la fermeture d'une connexion TCP
+	 */
+	public void setTcpIdleTimeout(int millis) {
+		if (millis < 1) throw new IllegalArgumentException("Le delai doit etre positif");
+		this.tcpIdleTimeout = millis;
+	}
 
-            InetAddress requesterIP=null;
-            int requesterPort=0;
+	/**
+	 * @param size : taille max des reponses UDP annoncee aux clients EDNS (512 a 4096)
+	 */
+	public void setEdnsUdpSize(int size) {
+		if (size < Edns.MIN_UDP_SIZE || size > Edns.MAX_UDP_SIZE)
+			throw new IllegalArgumentException("La taille EDNS doit etre entre " + Edns.MIN_UDP_SIZE + " et " + Edns.MAX_UDP_SIZE);
+		this.ednsUdpSize = size;
+	}
 
-            //InetAddress ipServer = InetAddress.getLocalHost();
-            DatagramSocket serveur = new DatagramSocket(this.port); // *Creation d'un socket UDP
+	/**
+	 * @param liste : zones dont le serveur fait autorite, separees par des virgules
+	 */
+	public void setZones(String liste) {
+		Zones z = Zones.parse(liste);
+		this.zones = z.size() > 0 ? z : null;
+	}
 
-            QueryFinder queryFinder = new QueryFinder(DNSFile);
+	/**
+	 * @param b : true pour traiter chaque requete sur son propre thread virtuel (Java 21),
+	 * ou a defaut sur un thread d'un pool sans taille fixe; le nombre de requetes en cours
+	 * est alors limite par la taille de la file
+	 */
+	public void setVirtualThreads(boolean b) {
+		this.virtuel = b;
+	}
 
-            UDPSender udpSender = new UDPSender(InetAddress.getByName(SERVER_DNS),portRedirect,serveur);
+	/**
+	 * @param port : port local (127.0.0.1) ou les statistiques sont servies en HTTP (/metrics),
+	 * 0 pour ne pas les servir
+	 */
+	public void setMetricsPort(int port) {
+		if (port < 0 || port > 0xFFFF) throw new IllegalArgumentException("Port invalide : " + port);
+		this.metricsPort = port;
+	}
 
-			// *Boucle infinie de recpetion
-			while (!this.stop) {
+	/**
+	 * @param fichier : fichier circulaire ou copier les requetes des clients et les reponses
+	 * (PacketCapture), null pour ne pas capturer
+	 */
+	public void setCaptureFile(String fichier) {
+		this.captureFile = fichier;
+	}
 
-				//byte[] buff = new byte[0xFF];
-                byte[] buff = new byte[BUF_SIZE];
+	/**
+	 * @param mo : taille du fichier de capture en mega-octets
+	 */
+	public void setCaptureSize(int mo) {
+		if (mo < 1 || mo > 2047) throw new IllegalArgumentException("La taille doit etre entre 1 et 2047 Mo");
+		this.captureSize = mo;
+	}
 
-				DatagramPacket paquetRecu = new DatagramPacket(buff,buff.length);
-                //paquetRecu.setAddress(InetAddress.getByName("127.0.0.1"));
+	/**
+	 * @param n : nombre de workers qui traitent les paquets recus
+	 */
+	public void setWorkerCount(int n) {
+		if (n < 1) throw new IllegalArgumentException("Il faut au moins un worker");
+		this.workerCount = n;
+	}
 
-				System.out.println("Serveur DNS  "+serveur.getLocalAddress()+"  en attente sur le port: "+ serveur.getLocalPort());
-                //System.out.println("Serveur DNS  "+this.SERVER_DNS+"  en attente sur le port: "+ serveur.getLocalPort());
+	/**
+	 * @param n : nombre max de paquets recus en attente d'un worker
+	 */
+	public void setQueueCapacity(int n) {
+		if (n < 1) throw new IllegalArgumentException("La file doit contenir au moins un paquet");
+		this.queueCapacity = n;
+	}
 
-				// *Reception d'un paquet UDP via le socket
-				serveur.receive(paquetRecu);
+	/**
+	 * @return le nombre de paquets abandonnes parce que la file des workers etait pleine
+	 */
+	public long getPaquetsAbandonnes() {
+		Metrics m = metrics;
+		return m == null ? 0 : m.getAbandons(Metrics.ABANDON_FILE_PLEINE);
+	}
 
-				System.out.println("paquet recu du  "+paquetRecu.getAddress()+"  du port: "+ paquetRecu.getPort());
+	public String gethostNameFromPacket() {
+		return DomainName;
+	}
 
+	public String getAdrIP() {
+		return adrIP;
+	}
 
-				// *Creation d'un DataInputStream ou ByteArrayInputStream pour
-				// manipuler les bytes du paquet
+	private void setAdrIP(String ip) {
+		adrIP = ip;
+	}
 
-				ByteArrayInputStream TabInputStream = new ByteArrayInputStream (paquetRecu.getData());
+	public String getSERVER_DNS() {
+		return SERVER_DNS;
+	}
 
+	public void setSERVER_DNS(String server_dns) {
+		this.SERVER_DNS = server_dns;
+	}
 
-                //We read the request id from the 2 first bytes
-                int requestId=0;
-                requestId+=TabInputStream.read();
-                requestId+=TabInputStream.read();
+	public void setDNSFile(String filename) {
+		DNSFile = filename;
+	}
 
-                //We read the request type
-                int requestType;
+	public void run() {
+		try {
 
-                //We read the next byte
-                byte byteTmp = (byte) TabInputStream.read();
-                //we convert the byte to a string that contains 8 chars
-                String byteString = String.format("%8s",Integer.toBinaryString(byteTmp & 0xFF)).replace(' ', '0');
+            //La table est chargee une seule fois, les recherches se font ensuite en memoire
+            RecordStore recordStore = new RecordStore(DNSFile);
+            Log.info(recordStore.load() + " enregistrements charges depuis " + DNSFile);
+
+            //Les adresses apprises sont ecrites dans le fichier par un thread a part,
+            //sauf si la table est un fichier compact (binaire, en lecture seule)
+            AnswerRecorder answerRecorder = null;
+            if (recordStore.isCompact()) {
+                Log.info("Table compacte : les adresses apprises ne seront pas enregistrees");
+            } else {
+                final AnswerRecorder recorder = new AnswerRecorder(DNSFile);
+                recorder.start();
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        recorder.fermer(1000);
+                    }
+                });
+                answerRecorder = recorder;
+            }
 
-                //We check if the first bit of the byte is a 0 or a 1
-                if(byteString.charAt(0) == '0'){
-                    requestType = 0;
-                    System.out.println("\n---- Request ----");
-                }
-                else{
-                    requestType = 1;
-                    System.out.println("\n---- Answer ----");
-                }
+            //Les requetes sont redirigees vers le plus rapide des serveurs disponibles
+            Forwarder forwarder = new Forwarder(Forwarder.parseServeurs(SERVER_DNS, portRedirect),
+                    upstreamTimeout, upstreamRetries);
+            forwarder.start();
+            Log.info(forwarder.getUpstreams().length + " serveur(s) de redirection : " + SERVER_DNS);
+
+            ResponseCache responseCache = cacheCapacity > 0 ? new ResponseCache(cacheCapacity) : null;
+            final QueryProcessor processor = new QueryProcessor(recordStore, forwarder,
+                    answerRecorder, RedirectionSeulement, responseCache);
+            processor.setEdnsUdpSize(ednsUdpSize);
+            processor.setContextesPartages(virtuel);
+            metrics = processor.getMetrics();
+            forwarder.setMetrics(metrics);
+            if (zones != null) {
+                zones.verifier(recordStore);
+                processor.setZones(zones);
+                Log.info("Autorite sur " + zones.size() + " zone(s) : les noms de ces zones ne sont jamais rediriges");
+            }
 
-                //we skip the 3 next bytes to reach the ANCOUNT part
-                TabInputStream.skip(3);
-                int ancount = TabInputStream.read()+TabInputStream.read();
-                System.out.println("ancount = " + ancount);
+            //Les paquets des clients sont copies dans un fichier circulaire, pour les analyser ou les rejouer
+            if (captureFile != null) {
+                final PacketCapture capture = PacketCapture.creer(captureFile, captureSize);
+                processor.setCapture(capture);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        capture.fermer();
+                    }
+                });
+                Log.info("Capture des paquets dans " + captureFile + " (" + captureSize + " Mo)");
+            }
 
-                //we skip the 4 next bytes to reach the Query part or the request
-                TabInputStream.skip(4);
+            //Les statistiques sont lues par un agent local (Prometheus)
+            if (metricsPort > 0) {
+                new MetricsServer(metricsPort, metrics, forwarder, responseCache).start();
+            }
 
-                //we extract the domainName that we have to resolve
-                String domainName = getDomainName(TabInputStream);
+            //Les reponses des serveurs arrivent sur leurs propres sockets, pas sur le port des clients
+            if (upstreamSockets > 0) {
+                UpstreamSocketPool upstreamPool = new UpstreamSocketPool(upstreamSockets, processor);
+                upstreamPool.start();
+                forwarder.setUpstreamSink(upstreamPool);
+                processor.setReponsesSurPortClient(false);
+                Log.info(upstreamSockets + " sockets de redirection, ports "
+                        + Arrays.toString(upstreamPool.getPorts()));
+            }
+            else if (tcp) {
+                //Une requete recue en TCP ne peut partir par la connexion du client : un socket UDP lui est reserve
+                UpstreamSocketPool fluxPool = new UpstreamSocketPool(1, processor);
+                fluxPool.start();
+                forwarder.setFluxSink(fluxPool);
+            }
 
-                System.out.println("Le nom de domaine: "+domainName);
+            //Les clients qui passent a TCP (reponse tronquee, requetes en rafale) sont servis sur le meme port
+            if (tcp) {
+                Thread t = new Thread(new TCPServer(this.port, processor, creerWorkers("dns-tcp-worker-"),
+                        tcpConnections, tcpIdleTimeout), "dns-tcp");
+                t.setDaemon(true);
+                t.start();
+            }
 
-                //if the request is a question
-                if(requestType == 0){
+            //Les modifications du fichier DNS sont prises en compte sans redemarrer
+            if (rechargement) {
+                new ZoneWatcher(DNSFile, processor, answerRecorder).start();
+            }
 
-                    //We store the client Port and IP
-                    requesterIP = paquetRecu.getAddress();
-                    requesterPort = paquetRecu.getPort();
+            if (nio || socketCount > 1) {
+                demarrerNio(processor);
+                return;
+            }
 
-                    if (this.RedirectionSeulement){
-                        System.out.println("(Redirection mode) Redirection to another DNS...");
-                        //Rediction vers un autre sserveur DNS
-                        redirectionRequete(udpSender,serveur,paquetRecu);
-                    }
-                    else{
-                        List<String> domainIpList = queryFinder.StartResearch(domainName);
-
-                        if(domainIpList.size()==0){
-                            //we redirect to another DNS server
-                            System.out.println("Redirection to another DNS...");
-                            //Rediction vers un autre serveur DNS
-                            redirectionRequete(udpSender, serveur, paquetRecu);
-                        }
-                        else{
-                            System.out.println("Response from DNS file ...");
-                            byte[] newAnswerData = UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(paquetRecu.getData(),domainIpList);
-                            DatagramPacket answer = new DatagramPacket(newAnswerData,newAnswerData.length,requesterIP,requesterPort);
-                            serveur.send(answer);
-                        }
-                    }
-                }
-                else{ //if the request is an answer
+            //InetAddress ipServer = InetAddress.getLocalHost();
+            final DatagramSocket serveur = new DatagramSocket(this.port); // *Creation d'un socket UDP
+            final PacketSink sink = new DatagramSocketSink(serveur);
 
-                    //We skip the next 16 bytes to reach the first 4 bytes that store the first ip address
-                    TabInputStream.skip(16);
+            Executor workers = creerWorkers("dns-worker-");
+            Log.info("Serveur DNS  "+serveur.getLocalAddress()+"  en attente sur le port: "+ serveur.getLocalPort());
 
-                    //IP list from the response request
-                    List<String> IPListReceived = getIpAddressFromRDATA(TabInputStream, ancount);
+			// *Boucle infinie de recpetion
+			while (!this.stop) {
 
-                    //We update the content of the DNS file that contains the IPs/Domains
-                    updateDnsFile(domainName,IPListReceived);
+				//byte[] buff = new byte[0xFF];
+                byte[] buff = new byte[BUF_SIZE];
 
-                    byte[] newAnswerData = UDPAnswerPacketCreator.getInstance().CreateAnswerPacket(paquetRecu.getData(),IPListReceived);
-                    DatagramPacket answer = new DatagramPacket(newAnswerData,newAnswerData.length,requesterIP,requesterPort);
+				final DatagramPacket paquetRecu = new DatagramPacket(buff,buff.length);
+                //paquetRecu.setAddress(InetAddress.getByName("127.0.0.1"));
 
-                    //we send the answer to the client who made the request
-                    serveur.send(answer);
-                }
+                //System.out.println("Serveur DNS  "+this.SERVER_DNS+"  en attente sur le port: "+ serveur.getLocalPort());
 
-                System.out.println("---- END ----\n\n");
+				// *Reception d'un paquet UDP via le socket
+				serveur.receive(paquetRecu);
 
+				// *Le traitement est confie aux workers, la boucle retourne aussitot a la reception
+				workers.execute(new Runnable() {
+					public void run() {
+						processor.process(paquetRecu.getData(), paquetRecu.getLength(),
+								(InetSocketAddress) paquetRecu.getSocketAddress(), sink);
+					}
+				});
 			}
 //			serveur.close(); //closing server
 		} catch (Exception e) {
-			System.err.println("Probl�me � l'ex�cution :");
-			e.printStackTrace(System.err);
+			Log.error("Probleme a l'execution", e);
 		}
 	}
 
-    /**
-     * Method that return the domain name. It needs to be call when the ByteArrayInputStream is at the index 12.
-     * @param TabInputStream
-     * @return a string that contain the domain name extracted from the request
-     */
-    private String getDomainName(ByteArrayInputStream TabInputStream){
-
-        //We read the next byte, this numbers correspond to the next numbers of bytes that need to be read
-        int byteValue=TabInputStream.read();
-
-        //We store in the domainName from the request
-        String domainName = "";
-
-        //The char that match with the value of the current byte
-        char[]currentChart = null;
-
-        while(true){
-
-            /*
-             *   We check if we need to read chars
-             */
-            if(byteValue!=0){
-
-                /**
-                 * We read the number of chars asked
-                 */
-                for (int i = 0; i < byteValue; i++) {
-                    currentChart = Character.toChars(TabInputStream.read());
-                    domainName+=currentChart[0];
-                }
-
-                //Then we check if we still need to read other chars
-                byteValue = TabInputStream.read();
-
-
-                if(byteValue>0){
-                                /*
-                                * If it's yes we add a dot between the first part of
-                                * the domain name and the one who arrived
-                                */
-                    domainName+=".";
-                }
-                else{
-                    break;
-                }
+	/**
+	 * Lance le moteur NIO. Avec plusieurs sockets, chaque canal est lie au meme port avec
+	 * SO_REUSEPORT et a sa propre boucle; toutes partagent le meme QueryProcessor.
+	 */
+	private void demarrerNio(QueryProcessor processor) throws IOException {
+		int n = socketCount;
+		if (n > 1 && !NioUDPServer.isReusePortSupported()) {
+			Log.warn("SO_REUSEPORT n'est pas supporte sur ce systeme, un seul socket sera utilise");
+			n = 1;
+		}
+		if (n == 1) {
+			new NioUDPServer(this.port, processor).run();
+			return;
+		}
+		NioUDPServer[] boucles = new NioUDPServer[n];
+		for (int i = 0; i < n; i++) {
+			boucles[i] = new NioUDPServer(this.port, processor, true);
+		}
+		Log.info(n + " sockets ouverts sur le port " + this.port + " (SO_REUSEPORT)");
+		for (int i = 1; i < n; i++) {
+			Thread t = new Thread(boucles[i], "dns-loop-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		boucles[0].run();
+	}
 
+	/**
+	 * Envoi des reponses et des redirections sur le socket d'ecoute
+	 */
+	private static class DatagramSocketSink implements PacketSink {
+		private final DatagramSocket socket;
 
-            }
-        }
-
-        return domainName;
-    }
-
-    /**
-     * Method that return the list of IP address that have been resolved for the given domain name.
-     * The method has to be called when the current byte of the ByteArrayInputStream read is the last byte of RDATA_LENGTH
-     * @param TabInputStream    The packet received
-     * @param anCount The number of ip that we have to extract
-     * @return  The list of IP Address
-     */
-    private List<String> getIpAddressFromRDATA(ByteArrayInputStream TabInputStream, int anCount){
-
-        List<String> ipAddress = new ArrayList<String>();
-
-        //we store the current IP address from the request
-        String currentIpAddress = "";
-
-        int tmp;
-        for (int i=1; i < 4*anCount+1; i++){
-
-            //If the next number read is the fourth of the ip address
-            if(i%4 == 0) {
-               tmp = TabInputStream.read();
-               currentIpAddress+= Integer.toString(tmp);
-               ipAddress.add(currentIpAddress);
-               System.out.println(currentIpAddress);
-               currentIpAddress="";
-
-               /*
-                * We pass the next 12 bytes where are store the information (DNSname, TYPE, CLASS, TTL, RDATA_LENGTH)
-                * about the next ip address
-                */
-               for (int j = 0; j < 12; j++) {
-                    TabInputStream.read();
-               }
+		DatagramSocketSink(DatagramSocket socket) {
+			this.socket = socket;
+		}
 
-            }
-            else {
-                tmp = TabInputStream.read();
-                currentIpAddress+= Integer.toString(tmp);
-                currentIpAddress+=".";
-            }
-        }
-        System.out.println(currentIpAddress);
-        return ipAddress;
-
-    }
-
-    /**
-     * Method that update the contant of the DNS file with the List of IP received in the response request if
-     * they are not already registered in.
-     * @param domainName        The domain name being resolved
-     * @param IPListReceived    The list of IP resolved by another DNS server for this domain name
-     */
-    public void updateDnsFile(String domainName,List<String> IPListReceived){
-
-        QueryFinder queryFinder = new QueryFinder(DNSFile);
-        AnswerRecorder answerRecorder = new AnswerRecorder(DNSFile);
-
-        //IP list from the DNS file
-        List<String> IPListKnew = queryFinder.StartResearch(domainName);
-
-        /*
-         *   For each IP received in the response request, we check if it's already registered in
-         *   the DNS file where all the IP/domainName knew are saved.
-         */
-        for(String IP : IPListReceived){
-            if(!IPListKnew.contains(IP)){
-                answerRecorder.StartRecord(domainName,IP);
-            }
-        }
-    }
+		public void send(byte[] data, int offset, int length, InetSocketAddress destination) throws IOException {
+			socket.send(new DatagramPacket(data, offset, length, destination));
+		}
 
+		public boolean isDatagram() {
+			return true;
+		}
+	}
 
+	/**
+	 * Cree le pool de workers qui analysent les paquets, cherchent les adresses et
+	 * construisent les reponses. La file d'attente est bornee : lorsqu'elle est pleine,
+	 * le paquet est abandonne plutot que de bloquer la reception.
+	 * @param nom : prefixe du nom des threads
+	 */
+	private Executor creerWorkers(final String nom) {
+		if (virtuel) return creerThreadsParRequete(nom);
+		ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger numero = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, nom + numero.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		RejectedExecutionHandler abandon = new RejectedExecutionHandler() {
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				metrics.abandon(Metrics.ABANDON_FILE_PLEINE);
+				//sous charge, seuls le 1er, 2e, 4e, 8e... abandons sont signales (tous sont comptes)
+				long n = metrics.getAbandons(Metrics.ABANDON_FILE_PLEINE);
+				if ((n & (n - 1)) == 0) Log.warn("File des workers pleine, paquet abandonne (total="+n+")");
+			}
+		};
+		Log.info("Demarrage de "+workerCount+" workers (file de "+queueCapacity+" paquets)");
+		return new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), factory, abandon);
+	}
 
+	/**
+	 * Cree l'Executor du mode un thread par requete. Au plus queueCapacity requetes sont
+	 * traitees en meme temps; au-dela, le paquet est abandonne comme avec le pool de workers.
+	 * @param nom : prefixe du nom des threads
+	 */
+	private Executor creerThreadsParRequete(String nom) {
+		final Executor threads = VirtualThreads.executor(nom);
+		final Semaphore places = new Semaphore(queueCapacity);
+		Log.info("Un thread " + (VirtualThreads.isSupported() ? "virtuel" : "(pool sans limite, Java < 21)")
+				+ " par requete, " + queueCapacity + " requetes en cours au plus");
+		return new Executor() {
+			public void execute(final Runnable tache) {
+				if (!places.tryAcquire()) {
+					metrics.abandon(Metrics.ABANDON_FILE_PLEINE);
+					long n = metrics.getAbandons(Metrics.ABANDON_FILE_PLEINE);
+					if ((n & (n - 1)) == 0) Log.warn("Trop de requetes en cours, paquet abandonne (total="+n+")");
+					return;
+				}
+				try {
+					threads.execute(new Runnable() {
+						public void run() {
+							try {
+								tache.run();
+							} finally {
+								places.release();
+							}
+						}
+					});
+				} catch (RuntimeException e) {
+					places.release();
+					throw e;
+				}
+			}
+		};
+	}
 }
@@ -51,7 +51,7 @@ import java.net.UnknownHostException;
 		try {
 			if(sendsocket == null) SendSocket = new DatagramSocket();
 			else SendSocket = sendsocket;
-			System.out.println("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
+			if(Log.isDebug()) Log.debug("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
 	
 			this.dest_port = destport;
 			this.dest_ip = destip;
@@ -76,7 +76,7 @@ import java.net.UnknownHostException;
 		try {
 			if(sendsocket == null) SendSocket = new DatagramSocket();
 			else SendSocket = sendsocket;
-			System.out.println("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
+			if(Log.isDebug()) Log.debug("Construction d'un socket d'envoi sur port="+SendSocket.getLocalPort());
 
 			this.dest_port = port;
 			this.addr = address;
@@ -136,11 +136,10 @@ import java.net.UnknownHostException;
 			packet.setPort(dest_port);
 
 			//Envoi le packet
-			System.out.println("Sending packet to adr="+dest_ip+" port="+dest_port+ " srcport="+SendSocket.getLocalPort());
+			if(Log.isDebug()) Log.debug("Sending packet to adr="+dest_ip+" port="+dest_port+ " srcport="+SendSocket.getLocalPort());
 			SendSocket.send(packet);
 		} catch (Exception e) {
-			System.err.println("Probleme a l'execution :");
-			e.printStackTrace(System.err);
+			Log.error("Probleme a l'execution", e);
 		}
 	}
 }
@@ -0,0 +1,127 @@
+package com.ets.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sockets reserves aux echanges avec les serveurs de redirection.
+ *
+ * Les requetes redirigees partent de plusieurs sockets lies chacun a un port choisi au
+ * hasard, et chaque socket a son propre thread de lecture qui confie les reponses au
+ * QueryProcessor. Le trafic des clients et celui des serveurs ne se partagent donc plus
+ * le tampon de reception du port d'ecoute, et un attaquant doit deviner le port source
+ * en plus de l'identifiant pour injecter une fausse reponse.
+ */
+public class UpstreamSocketPool implements PacketSink {
+	private final static int MIN_PORT = 1024;
+	private final static int ESSAIS_PORT = 16; //ports aleatoires essayes avant de laisser le systeme choisir
+
+	private final DatagramSocket[] sockets;
+	private final QueryProcessor processor;
+	private volatile boolean stop = false;
+
+	/**
+	 * Constructeur, ouvre les sockets
+	 * @param n : nombre de sockets
+	 * @param processor : traitement des reponses recues
+	 * @throws SocketException si un socket ne peut etre ouvert
+	 */
+	public UpstreamSocketPool(int n, QueryProcessor processor) throws SocketException {
+		if (n < 1) throw new IllegalArgumentException("Il faut au moins un socket");
+		this.processor = processor;
+		this.sockets = new DatagramSocket[n];
+		Random random = new SecureRandom();
+		for (int i = 0; i < n; i++) {
+			sockets[i] = ouvrir(random);
+		}
+	}
+
+	/**
+	 * Ouvre un socket sur un port aleatoire libre
+	 */
+	private static DatagramSocket ouvrir(Random random) throws SocketException {
+		for (int i = 0; i < ESSAIS_PORT; i++) {
+			try {
+				return new DatagramSocket(MIN_PORT + random.nextInt(65536 - MIN_PORT));
+			} catch (SocketException e) {
+				//port occupe, on en essaie un autre
+			}
+		}
+		return new DatagramSocket();
+	}
+
+	/**
+	 * Demarre un thread de lecture par socket
+	 */
+	public void start() {
+		for (int i = 0; i < sockets.length; i++) {
+			final DatagramSocket socket = sockets[i];
+			Thread t = new Thread("dns-upstream-" + i) {
+				public void run() {
+					lire(socket);
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Recoit les reponses d'un socket jusqu'a l'arret
+	 */
+	private void lire(DatagramSocket socket) {
+		byte[] buff = new byte[UDPReceiver.BUF_SIZE];
+		DatagramPacket paquet = new DatagramPacket(buff, buff.length);
+		while (!stop) {
+			try {
+				paquet.setLength(buff.length);
+				socket.receive(paquet);
+				processor.processUpstream(buff, paquet.getLength(), (InetSocketAddress) paquet.getSocketAddress());
+			} catch (IOException e) {
+				if (!stop) Log.error("Reception sur un socket de redirection impossible", e);
+			}
+		}
+	}
+
+	/**
+	 * @return true, les messages sont envoyes en UDP
+	 */
+	public boolean isDatagram() {
+		return true;
+	}
+
+	/**
+	 * Envoie une requete depuis un des sockets, choisi au hasard
+	 */
+	public void send(byte[] data, int offset, int length, InetSocketAddress destination) throws IOException {
+		DatagramSocket socket = sockets[ThreadLocalRandom.current().nextInt(sockets.length)];
+		socket.send(new DatagramPacket(data, offset, length, destination));
+	}
+
+	/**
+	 * @return les ports locaux des sockets
+	 */
+	public int[] getPorts() {
+		int[] ports = new int[sockets.length];
+		for (int i = 0; i < sockets.length; i++) {
+			ports[i] = sockets[i].getLocalPort();
+		}
+		return ports;
+	}
+
+	/**
+	 * Ferme les sockets et arrete les threads de lecture
+	 */
+	public void arreter() {
+		stop = true;
+		for (DatagramSocket socket : sockets) {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.ets.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execution d'une tache par thread, sur des threads virtuels (Java 21) si la JVM les supporte.
+ *
+ * Le serveur est compile pour des versions plus anciennes de Java : les threads virtuels sont
+ * crees par reflexion (Thread.ofVirtual().name(prefixe, 0).factory()). Sur une JVM qui ne les
+ * connait pas, les taches sont confiees a un pool de threads classiques cree a la demande
+ * (les threads inactifs sont liberes apres une minute).
+ */
+public class VirtualThreads {
+	private final static long INACTIVITE_S = 60; //duree de vie d'un thread inactif du pool de repli
+
+	private VirtualThreads(){
+	}
+
+	/**
+	 * @return true si la JVM supporte les threads virtuels
+	 */
+	public static boolean isSupported(){
+		return factory("test-") != null;
+	}
+
+	/**
+	 * @param prefixe : prefixe du nom des threads (suivi d'un numero)
+	 * @return une fabrique de threads virtuels, null si la JVM ne les supporte pas
+	 */
+	public static ThreadFactory factory(String prefixe){
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, prefixe, 0L);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null; //Java < 21
+		}
+	}
+
+	/**
+	 * @param prefixe : prefixe du nom des threads
+	 * @return un Executor qui lance chaque tache sur un nouveau thread virtuel, ou a defaut
+	 * sur un thread (daemon) d'un pool sans limite
+	 */
+	public static Executor executor(final String prefixe){
+		final ThreadFactory virtuels = factory(prefixe);
+		if (virtuels != null) {
+			return new Executor() {
+				public void execute(Runnable tache) {
+					virtuels.newThread(tache).start();
+				}
+			};
+		}
+		ThreadFactory classiques = new ThreadFactory() {
+			private final AtomicInteger numero = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefixe + numero.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, INACTIVITE_S, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), classiques);
+	}
+}
@@ -0,0 +1,134 @@
+package com.ets.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Surveille le fichier DNS et recharge la table lorsqu'il est modifie, sans arreter le serveur.
+ *
+ * La nouvelle table est construite entierement par ce thread, a cote de celle en service,
+ * puis remplace celle-ci d'un seul coup dans le QueryProcessor (copie a l'ecriture) : les
+ * recherches en cours ne sont jamais bloquees et voient soit l'ancienne table, soit la
+ * nouvelle, jamais une table a moitie chargee. Si le chargement echoue, l'ancienne table
+ * reste en service.
+ *
+ * Un editeur ecrit souvent le fichier en plusieurs fois : le rechargement n'a lieu qu'apres
+ * DEBOUNCE_MS millisecondes sans modification. Les lignes ajoutees par l'AnswerRecorder ne
+ * provoquent pas de rechargement. Une table compacte doit etre remplacee par un renommage
+ * (et non reecrite sur place), puisqu'elle est projetee en memoire.
+ */
+public class ZoneWatcher extends Thread {
+	private final static long DEBOUNCE_MS = 500; //attente sans modification avant le rechargement
+
+	private final File fichier;
+	private final QueryProcessor processor;
+	private final AnswerRecorder answerRecorder; //null si les adresses apprises ne sont pas enregistrees
+	private volatile boolean stop = false;
+	private WatchService watcher = null;
+
+	/**
+	 * Constructeur
+	 * @param filename : fichier DNS de la table en service
+	 * @param processor : processeur dont la table est remplacee
+	 * @param answerRecorder : thread qui ajoute les adresses apprises au fichier, null s'il n'y en a pas
+	 */
+	public ZoneWatcher(String filename, QueryProcessor processor, AnswerRecorder answerRecorder) {
+		super("dns-reload");
+		this.fichier = new File(filename).getAbsoluteFile();
+		this.processor = processor;
+		this.answerRecorder = answerRecorder;
+		setDaemon(true);
+	}
+
+	/**
+	 * Attend les modifications du fichier jusqu'a l'arret
+	 */
+	public void run() {
+		Path dossier = fichier.getParentFile().toPath();
+		Path nom = fichier.toPath().getFileName();
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			//le dossier est surveille pour voir aussi un fichier remplace par renommage
+			dossier.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			Log.info("Surveillance de " + fichier + " pour le rechargement de la table");
+			while (!stop) {
+				WatchKey key = watcher.take();
+				boolean modifie = concerne(key, nom);
+				//regroupement des evenements rapproches
+				while (!stop) {
+					key = watcher.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+					if (key == null) break;
+					modifie |= concerne(key, nom);
+				}
+				if (modifie && !stop) recharger();
+			}
+		} catch (InterruptedException e) {
+			//arret
+		} catch (ClosedWatchServiceException e) {
+			//arret
+		} catch (IOException e) {
+			Log.error("Impossible de surveiller " + fichier + ", la table ne sera pas rechargee", e);
+		}
+	}
+
+	/**
+	 * @return true si un des evenements de la cle porte sur le fichier DNS
+	 */
+	private static boolean concerne(WatchKey key, Path nom) {
+		boolean trouve = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (nom.equals(event.context())) trouve = true;
+		}
+		key.reset();
+		return trouve;
+	}
+
+	/**
+	 * Charge le fichier dans une nouvelle table et la met en service. Les adresses apprises
+	 * de l'ancienne table y sont reprises pour ne pas les enregistrer une seconde fois.
+	 * @return true si la table a ete remplacee
+	 */
+	public synchronized boolean recharger() {
+		if (answerRecorder != null && !answerRecorder.aEteModifieAilleurs()) {
+			return false; //seulement des lignes apprises ajoutees par le recorder
+		}
+		long debut = System.currentTimeMillis();
+		RecordStore table = new RecordStore(fichier.getPath());
+		int count;
+		try {
+			count = table.load();
+		} catch (IOException e) {
+			Log.error("Rechargement de " + fichier + " impossible, l'ancienne table est gardee", e);
+			return false;
+		}
+		table.reprendreApprises(processor.getRecordStore());
+		processor.setRecordStore(table);
+		if (answerRecorder != null) answerRecorder.rouvrir(); //le fichier a pu etre remplace par renommage
+		Log.info("Table rechargee : " + count + " adresses depuis " + fichier
+				+ " en " + (System.currentTimeMillis() - debut) + " ms");
+		return true;
+	}
+
+	/**
+	 * Arrete la surveillance
+	 */
+	public void arreter() {
+		stop = true;
+		interrupt();
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				Log.error("Fermeture de la surveillance impossible", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.ets.server;
+
+/**
+ * Zones pour lesquelles le serveur fait autorite.
+ *
+ * Un nom qui appartient a l'une de ces zones n'est jamais redirige : s'il est dans la table,
+ * la reponse porte le bit AA; sinon le serveur repond lui-meme NXDOMAIN (nom inexistant) ou
+ * NODATA (nom existant sans enregistrement du type demande), avec le SOA de la zone dans la
+ * section autorite (RFC 2308). Le SOA et les NS de la zone sont des lignes du fichier DNS
+ * comme les autres. Une sous-zone configuree l'emporte sur la zone qui la contient; les
+ * delegations (NS sous le sommet d'une zone) ne sont pas suivies.
+ */
+public class Zones {
+
+	/**
+	 * Une zone : son nom (sommet) en texte et au format "wire"
+	 */
+	public static class Zone {
+		private final String nom;
+		private final byte[] wire;
+
+		Zone(String nom) {
+			this.nom = nom;
+			this.wire = RecordData.nameToWire(nom);
+		}
+
+		/**
+		 * @return le nom de la zone, normalise
+		 */
+		public String getNom() {
+			return nom;
+		}
+
+		/**
+		 * @return le nom de la zone au format "wire", non compresse
+		 */
+		public byte[] getWire() {
+			return wire;
+		}
+	}
+
+	private final NameIndex<Zone> index = new NameIndex<Zone>();
+
+	/**
+	 * @param liste : noms des zones separes par des virgules (ex "exemple.ca,exemple.com")
+	 * @return les zones
+	 * @throws IllegalArgumentException si un nom est invalide
+	 */
+	public static Zones parse(String liste) {
+		Zones zones = new Zones();
+		for (String nom : liste.split(",")) {
+			nom = nom.trim();
+			if (!nom.isEmpty()) zones.ajouter(nom);
+		}
+		return zones;
+	}
+
+	/**
+	 * @param nom : nom de la zone (son sommet)
+	 */
+	public void ajouter(String nom) {
+		String cle = RecordStore.normalize(nom);
+		index.put(cle, new Zone(cle));
+	}
+
+	/**
+	 * @param hostname : nom a verifier
+	 * @return la zone la plus specifique qui contient le nom, null s'il n'est dans aucune
+	 */
+	public Zone zone(String hostname) {
+		return index.plusLongSuffixe(hostname);
+	}
+
+	/**
+	 * @return le nombre de zones
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Signale les zones qui n'ont pas de SOA dans une table : leurs reponses negatives
+	 * seront envoyees sans section autorite
+	 * @param store : la table chargee
+	 */
+	public void verifier(final RecordStore store) {
+		index.parcourir(new NameIndex.Visiteur<Zone>() {
+			public void visiter(String nom, Zone zone) {
+				RecordStore.RecordSet soa = store.find(nom, DNSMessage.TYPE_SOA);
+				if (soa == null || soa.getType() != DNSMessage.TYPE_SOA) {
+					Log.warn("Zone " + nom + " : aucun SOA dans " + store.getFilename());
+				}
+			}
+		});
+	}
+}